@@ -6,26 +6,27 @@ import com.cavetale.core.command.CommandWarn;
 import com.cavetale.mytems.Mytems;
 import com.cavetale.mytems.item.photo.Photo;
 import com.winthier.photos.legacy.LegacyDatabase;
-import com.winthier.photos.legacy.LegacyPhoto;
 import com.winthier.photos.sql.SQLPhoto;
 import com.winthier.playercache.PlayerCache;
-import java.io.File;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.logging.Level;
 import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.util.FileUtil;
 import static net.kyori.adventure.text.Component.join;
 import static net.kyori.adventure.text.Component.text;
 import static net.kyori.adventure.text.JoinConfiguration.noSeparators;
 import static net.kyori.adventure.text.format.NamedTextColor.*;
 
 final class AdminCommand extends AbstractCommand<PhotosPlugin> {
+    private PruneJob pruneJob;
+    private MigrationJob migrationJob;
+
     protected AdminCommand(final PhotosPlugin plugin) {
         super(plugin, "photoadmin");
     }
@@ -52,8 +53,9 @@ final class AdminCommand extends AbstractCommand<PhotosPlugin> {
             .completers(PlayerCache.NAME_COMPLETER,
                         CommandArgCompleter.integer(i -> i > 0))
             .senderCaller(this::give);
-        rootNode.addChild("migrate").denyTabCompletion()
+        rootNode.addChild("migrate").arguments("[cancel]")
             .description("Migrate legacy photos")
+            .completers(CommandArgCompleter.list("cancel"))
             .senderCaller(this::migrate);
         rootNode.addChild("transfer").arguments("<photoId> <player>")
             .description("Transfer photo")
@@ -69,9 +71,13 @@ final class AdminCommand extends AbstractCommand<PhotosPlugin> {
             .completers(PlayerCache.NAME_COMPLETER,
                         PlayerCache.NAME_COMPLETER)
             .senderCaller(this::transferAll);
-        rootNode.addChild("prune").arguments("<forreal>")
+        rootNode.addChild("prune").arguments("[forreal|cancel]")
             .description("Prune empty photos")
+            .completers(CommandArgCompleter.list("forreal", "cancel"))
             .senderCaller(this::prune);
+        rootNode.addChild("stats").denyTabCompletion()
+            .description("Cache and render statistics")
+            .senderCaller(this::stats);
     }
 
     private void hand(Player player) {
@@ -137,27 +143,28 @@ final class AdminCommand extends AbstractCommand<PhotosPlugin> {
         return true;
     }
 
-    private void migrate(CommandSender sender) {
+    private boolean migrate(CommandSender sender, String[] args) {
+        if (args.length == 1 && args[0].equals("cancel")) {
+            if (migrationJob == null || migrationJob.isDone()) {
+                throw new CommandWarn("No migration is running");
+            }
+            migrationJob.cancel();
+            sender.sendMessage(text("Cancelling migration...", YELLOW));
+            return true;
+        } else if (args.length != 0) {
+            return false;
+        }
+        if (migrationJob != null && !migrationJob.isDone()) {
+            throw new CommandWarn("A migration is already running");
+        }
         LegacyDatabase legacyDatabase = new LegacyDatabase(plugin);
         if (!legacyDatabase.isValid()) {
             throw new CommandWarn("Legacy file does not exist");
         }
-        int count = 0;
-        for (LegacyPhoto legacyPhoto : legacyDatabase.loadPhotos()) {
-            PhotoRuntime photo = plugin.getPhotos().createLegacy(legacyPhoto.getId(),
-                                                                 legacyPhoto.getOwner(),
-                                                                 legacyPhoto.getName(),
-                                                                 legacyPhoto.getColor());
-            File oldFile = new File(plugin.getDataFolder(), "photos/" + legacyPhoto.filename());
-            if (!oldFile.exists()) {
-                sender.sendMessage("File not found: " + oldFile);
-            }
-            File newFile = new File(plugin.getImageFolder(), photo.getRow().filename());
-            FileUtil.copy(oldFile, newFile);
-            count += 1;
-        }
-        legacyDatabase.invalidate();
-        sender.sendMessage(text("Migrated " + count + " photos", AQUA));
+        migrationJob = new MigrationJob(plugin, sender, legacyDatabase);
+        migrationJob.start();
+        sender.sendMessage(text("Migrating legacy photos in the background...", AQUA));
+        return true;
     }
 
     private boolean transfer(CommandSender sender, String[] args) {
@@ -168,9 +175,8 @@ final class AdminCommand extends AbstractCommand<PhotosPlugin> {
         if (photo == null || !photo.isReady()) {
             throw new CommandWarn("Photo not found: " + photoId);
         }
-        photo.getRow().setOwner(target.uuid);
-        photo.getRow().setUpdated(new Date());
-        plugin.getDatabase().updateAsync(photo.getRow(), null, "owner", "updated");
+        plugin.getPhotos().setOwner(photo, target.uuid);
+        plugin.getPhotos().save(photo, PhotoBus.Change.OWNER, "owner");
         sender.sendMessage(text("Photo " + photoId + " transferred to " + target.name, AQUA));
         return true;
     }
@@ -186,9 +192,8 @@ final class AdminCommand extends AbstractCommand<PhotosPlugin> {
         if (oldOwner == null) {
             throw new CommandWarn("Photo " + photoId + " does not belong to anyone!");
         }
-        photo.getRow().setOwner(null);
-        photo.getRow().setUpdated(new Date());
-        plugin.getDatabase().updateAsync(photo.getRow(), null, "owner", "updated");
+        plugin.getPhotos().setOwner(photo, null);
+        plugin.getPhotos().save(photo, PhotoBus.Change.OWNER, "owner");
         sender.sendMessage(text("Confiscated photo " + photoId + " from " + PlayerCache.nameForUuid(oldOwner), AQUA));
         return true;
     }
@@ -198,16 +203,40 @@ final class AdminCommand extends AbstractCommand<PhotosPlugin> {
         PlayerCache from = PlayerCache.require(args[0]);
         PlayerCache to = PlayerCache.require(args[1]);
         Date now = new Date();
-        int count = plugin.getDatabase().update(SQLPhoto.class)
-            .set("owner", to.uuid)
-            .set("updated", now)
-            .where(c -> c.eq("owner", from.uuid))
-            .sync();
-        if (count == 0) {
-            throw new CommandWarn(from.name + " does not have any photos");
-        }
-        plugin.getPhotos().update();
-        sender.sendMessage(text(count + " photo(s) transferred from " + from.name + " to " + to.name, AQUA));
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                final int revision;
+                final int count;
+                try {
+                    revision = plugin.getPhotos().nextRevision();
+                    count = plugin.getDatabase().update(SQLPhoto.class)
+                        .set("owner", to.uuid)
+                        .set("updated", now)
+                        .set("revision", revision)
+                        .where(c -> c.eq("owner", from.uuid))
+                        .sync();
+                } catch (RuntimeException re) {
+                    plugin.getLogger().log(Level.SEVERE, "Transfer failed: " + from.name + " => " + to.name, re);
+                    Bukkit.getScheduler().runTask(plugin, () -> {
+                            sender.sendMessage(text("Transfer failed: " + re, RED));
+                        });
+                    return;
+                }
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                        if (count == 0) {
+                            sender.sendMessage(text(from.name + " does not have any photos", RED));
+                            return;
+                        }
+                        List<PhotoRuntime> photos = plugin.getPhotos().transferAll(from.uuid, to.uuid, now, revision);
+                        Set<Integer> photoIds = new HashSet<>();
+                        for (PhotoRuntime photo : photos) {
+                            photoIds.add(photo.getPhotoId());
+                        }
+                        plugin.getBus().publishRevision(revision);
+                        int items = plugin.refreshPhotoItems(photoIds);
+                        sender.sendMessage(text(count + " photo(s) transferred from " + from.name + " to " + to.name
+                                                + ", " + items + " item(s) updated", AQUA));
+                    });
+            });
         return true;
     }
 
@@ -216,41 +245,87 @@ final class AdminCommand extends AbstractCommand<PhotosPlugin> {
         if (args.length == 1) {
             if (args[0].equals("forreal")) {
                 forReal = true;
+            } else if (args[0].equals("cancel")) {
+                if (pruneJob == null || pruneJob.isDone()) {
+                    throw new CommandWarn("No prune is running");
+                }
+                pruneJob.cancel();
+                sender.sendMessage(text("Cancelling prune...", YELLOW));
+                return true;
             } else {
                 return false;
             }
         } else if (args.length != 0) {
             return false;
         }
-        int total = 0;
-        int blank = 0;
-        Map<UUID, Integer> ownerMap = new HashMap<>();
-        for (SQLPhoto row : plugin.getDatabase().find(SQLPhoto.class).findList()) {
-            total += 1;
-            File file = new File(plugin.getImageFolder(), row.filename());
-            if (!file.exists()) {
-                blank += 1;
-                if (row.getOwner() != null) {
-                    ownerMap.compute(row.getOwner(), (u, i) -> i != null ? i + 1 : 1);
-                }
-                if (forReal) plugin.getDatabase().delete(row);
-            }
-        }
-        int local = 0;
-        if (forReal) {
-            local = plugin.getPhotos().pruneLocal();
-        }
-        if (blank == 0 && local == 0) {
-            throw new CommandWarn("No blank photos were found");
-        }
-        for (Map.Entry<UUID, Integer> entry : ownerMap.entrySet()) {
-            sender.sendMessage(text("" + entry.getValue() + " " + PlayerCache.nameForUuid(entry.getKey()), GREEN));
-        }
-        if (forReal) {
-            sender.sendMessage(text("Deleted " + blank + "/" + total + " blank photos, pruned " + local, YELLOW));
-        } else {
-            sender.sendMessage(text("Found " + blank + "/" + total + " blank photos", AQUA));
+        if (pruneJob != null && !pruneJob.isDone()) {
+            throw new CommandWarn("A prune is already running");
         }
+        pruneJob = new PruneJob(plugin, sender, forReal);
+        pruneJob.start();
+        sender.sendMessage(text((forReal ? "Pruning" : "Scanning for") + " blank photos in the background...", AQUA));
         return true;
     }
+
+    private void stats(CommandSender sender) {
+        ImageCache cache = plugin.getImageCache();
+        sender.sendMessage(text("Image cache: " + cache.size() + " photos"
+                                + ", " + (cache.getBytes() / 1024L) + "/" + (cache.getMaxBytes() / 1024L) + " KiB"
+                                + ", hits " + cache.getHits()
+                                + ", misses " + cache.getMisses()
+                                + ", evictions " + cache.getEvictions()
+                                + String.format(", hit rate %.1f%%", cache.getHitRate() * 100.0), AQUA));
+        RenderScheduler scheduler = plugin.getRenderScheduler();
+        long avgMicros = scheduler.getDrawCount() > 0L
+            ? scheduler.getDrawNanos() / scheduler.getDrawCount() / 1000L
+            : 0L;
+        sender.sendMessage(text("Render: " + scheduler.getLoading() + "/" + scheduler.getMaxConcurrentLoads() + " loading"
+                                + ", " + scheduler.getQueueSize() + " queued"
+                                + ", " + scheduler.getDrawCount() + " draws"
+                                + " avg " + avgMicros + "us"
+                                + ", " + scheduler.getDeferredCount() + " deferred"
+                                + ", " + scheduler.getDeltaCount() + " deltas"
+                                + " " + (scheduler.getDeltaBytes() / 1024L)
+                                + "/" + (scheduler.getDeltaCount() * MapPixels.LENGTH / 1024L) + " KiB", AQUA));
+        PhotoViews views = plugin.getViews();
+        sender.sendMessage(text("Views: " + views.getAttached() + " attached"
+                                + ", " + views.getMaterializedCount() + " materialized"
+                                + ", " + views.getDetachedCount() + " detached"
+                                + ", " + views.getWokenCount() + " woken", AQUA));
+        PhotoPrefetcher prefetcher = plugin.getPrefetcher();
+        sender.sendMessage(text("Prefetch: " + prefetcher.getQueueSize() + " queued"
+                                + ", " + prefetcher.getInFlight() + "/" + prefetcher.getMaxInFlight() + " loading"
+                                + ", " + prefetcher.getPrefetched() + " prefetched"
+                                + ", " + prefetcher.getDropped() + " dropped"
+                                + ", hits " + prefetcher.getHits()
+                                + ", misses " + prefetcher.getMisses()
+                                + String.format(", hit rate %.1f%%", prefetcher.getHitRate() * 100.0), AQUA));
+        MapSendQueue sendQueue = plugin.getMapSendQueue();
+        sender.sendMessage(text("Send: " + sendQueue.getQueueSize() + " queued"
+                                + ", " + sendQueue.getSent() + " sent"
+                                + ", " + sendQueue.getMerged() + " merged"
+                                + ", " + sendQueue.getDeferred() + " deferred", AQUA));
+        PhotoExecutor executor = plugin.getExecutor();
+        sender.sendMessage(text("Executor: " + executor.getThreadCount()
+                                + (executor.isVirtualThreads() ? " virtual" : "") + " threads", AQUA));
+        sendMetrics(sender, "Loads", executor.getLoadQueueSize(), executor.getLoadMetrics());
+        sendMetrics(sender, "Downloads", executor.getDownloadQueueSize(), executor.getDownloadMetrics());
+        PhotoBus bus = plugin.getBus();
+        sender.sendMessage(text("Bus: " + (bus.isActive() ? "active" : "inactive")
+                                + ", " + bus.getSent() + " sent"
+                                + ", " + bus.getReceived() + " received", AQUA));
+        ConsentCache consent = plugin.getConsentCache();
+        sender.sendMessage(text("Consent: " + consent.size() + " players"
+                                + ", hits " + consent.getHits()
+                                + ", misses " + consent.getMisses(), AQUA));
+    }
+
+    private static void sendMetrics(CommandSender sender, String name, int queueSize, PhotoExecutor.Metrics metrics) {
+        sender.sendMessage(text("- " + name + ": " + queueSize + " queued"
+                                + ", " + metrics.getCompleted() + " completed"
+                                + ", " + metrics.getMerged() + " merged"
+                                + ", " + metrics.getRejected() + " rejected"
+                                + ", wait " + metrics.getAverageWaitMillis() + "ms"
+                                + ", run " + metrics.getAverageRunMillis() + "ms", AQUA));
+    }
 }
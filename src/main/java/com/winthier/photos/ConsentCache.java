@@ -0,0 +1,106 @@
+package com.winthier.photos;
+
+import com.winthier.photos.sql.SQLConsent;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+
+/**
+ * Remember which players accepted the photo rules.  All consents are
+ * loaded once on enable and kept in memory, so players who consented
+ * never wait for the database.  Players who did not consent are
+ * looked up in the database and remembered for a short while, in a
+ * bounded map.  Consent given on another server arrives via the bus.
+ *
+ * Call from the main thread only.
+ */
+@RequiredArgsConstructor
+final class ConsentCache {
+    private final PhotosPlugin plugin;
+    private final Set<UUID> consented = ConcurrentHashMap.newKeySet();
+    private final Map<UUID, Long> declined = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxDeclined;
+    private long declinedMillis;
+    @Getter private long hits = 0L;
+    @Getter private long misses = 0L;
+
+    protected void enable() {
+        maxDeclined = Math.max(0, plugin.getConfig().getInt("consent.negative-cache-size", 1000));
+        declinedMillis = Math.max(0L, plugin.getConfig().getLong("consent.negative-cache-seconds", 60L)) * 1000L;
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                List<SQLConsent> rows = plugin.getDatabase().find(SQLConsent.class).findList();
+                for (SQLConsent row : rows) {
+                    if (row.getPlayer() != null) consented.add(row.getPlayer());
+                }
+                plugin.getLogger().info("Loaded " + rows.size() + " consents");
+            });
+    }
+
+    public int size() {
+        return consented.size();
+    }
+
+    /**
+     * Find out if a player consented.  The callback is called right
+     * away if the answer is cached, otherwise once the database has
+     * answered.
+     */
+    public void check(UUID uuid, Consumer<Boolean> callback) {
+        if (consented.contains(uuid)) {
+            hits += 1;
+            callback.accept(true);
+            return;
+        }
+        Long expiry = declined.get(uuid);
+        if (expiry != null) {
+            if (expiry > System.currentTimeMillis()) {
+                hits += 1;
+                callback.accept(false);
+                return;
+            }
+            declined.remove(uuid);
+        }
+        misses += 1;
+        plugin.getDatabase().find(SQLConsent.class)
+            .eq("player", uuid)
+            .findRowCountAsync(count -> {
+                    if (count > 0) {
+                        consented.add(uuid);
+                    } else {
+                        decline(uuid);
+                    }
+                    callback.accept(count > 0);
+                });
+    }
+
+    /**
+     * Store the consent of a player and tell the other servers.
+     */
+    public void accept(UUID uuid) {
+        remember(uuid);
+        plugin.getDatabase().insertIgnoreAsync(new SQLConsent(uuid), c -> plugin.getBus().publishConsent(uuid));
+    }
+
+    /**
+     * Remember a consent which is already stored.
+     */
+    protected void remember(UUID uuid) {
+        consented.add(uuid);
+        declined.remove(uuid);
+    }
+
+    private void decline(UUID uuid) {
+        if (maxDeclined == 0 || declinedMillis == 0L) return;
+        declined.put(uuid, System.currentTimeMillis() + declinedMillis);
+        if (declined.size() > maxDeclined) {
+            declined.remove(declined.keySet().iterator().next());
+        }
+    }
+}
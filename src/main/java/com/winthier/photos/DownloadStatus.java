@@ -13,6 +13,7 @@ public enum DownloadStatus {
     TOO_LARGE,
     NOT_IMAGE,
     NOSAVE,
+    BUSY,
     UNKNOWN;
 
     public DownloadResult make(BufferedImage image) {
@@ -0,0 +1,140 @@
+package com.winthier.photos;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.Getter;
+
+/**
+ * Shared cache of decoded photos, keyed by photoId.  Each entry is
+ * the map palette representation of one photo (see MapPixels),
+ * which takes one byte per pixel.
+ *
+ * All entries live in one direct ByteBuffer slab, divided into
+ * fixed slots of MapPixels.LENGTH bytes, so a cached photo costs
+ * 16 KiB outside the heap instead of a 64 KiB ARGB image on it.  The
+ * slab size is the byte budget; when no slot is free, the least
+ * recently used entry is evicted.
+ *
+ * All methods are thread safe because async loads store their
+ * results from outside the main thread.
+ */
+final class ImageCache {
+    private final ByteBuffer slab;
+    private final int slotCount;
+    /** photoId => slot, in access order. */
+    private final LinkedHashMap<Integer, Integer> slots = new LinkedHashMap<>(256, 0.75f, true);
+    private final int[] freeSlots;
+    private int freeSlotCount;
+    // Stats
+    @Getter private long hits = 0L;
+    @Getter private long misses = 0L;
+    @Getter private long evictions = 0L;
+
+    ImageCache(final long maxBytes) {
+        this.slotCount = (int) Math.max(1L, Math.min(maxBytes / MapPixels.LENGTH,
+                                                     Integer.MAX_VALUE / MapPixels.LENGTH));
+        this.slab = ByteBuffer.allocateDirect(slotCount * MapPixels.LENGTH);
+        this.freeSlots = new int[slotCount];
+        for (int i = 0; i < slotCount; i += 1) {
+            freeSlots[i] = slotCount - 1 - i;
+        }
+        this.freeSlotCount = slotCount;
+    }
+
+    /**
+     * Copy the cached pixels into the given array.
+     * @return true if the photo was cached, false otherwise
+     */
+    public synchronized boolean read(int photoId, byte[] dst) {
+        Integer slot = slots.get(photoId);
+        if (slot == null) {
+            misses += 1;
+            return false;
+        }
+        hits += 1;
+        slab.get(slot * MapPixels.LENGTH, dst, 0, MapPixels.LENGTH);
+        return true;
+    }
+
+    /**
+     * Check if a photo is cached without counting a hit or miss, or
+     * touching its place in the eviction order.
+     */
+    public synchronized boolean contains(int photoId) {
+        return slots.containsKey(photoId);
+    }
+
+    /**
+     * Get a copy of the cached pixels without counting a hit or
+     * miss.
+     */
+    public synchronized byte[] peek(int photoId) {
+        Integer slot = slots.get(photoId);
+        if (slot == null) return null;
+        byte[] result = new byte[MapPixels.LENGTH];
+        slab.get(slot * MapPixels.LENGTH, result, 0, MapPixels.LENGTH);
+        return result;
+    }
+
+    public synchronized void put(int photoId, byte[] pixels) {
+        if (pixels.length != MapPixels.LENGTH) {
+            throw new IllegalArgumentException("pixels.length=" + pixels.length);
+        }
+        Integer slot = slots.get(photoId);
+        if (slot == null) {
+            if (freeSlotCount == 0) evictEldest();
+            freeSlotCount -= 1;
+            slot = freeSlots[freeSlotCount];
+            slots.put(photoId, slot);
+        }
+        slab.put(slot * MapPixels.LENGTH, pixels, 0, MapPixels.LENGTH);
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<Integer, Integer>> iter = slots.entrySet().iterator();
+        Map.Entry<Integer, Integer> eldest = iter.next();
+        iter.remove();
+        freeSlots[freeSlotCount] = eldest.getValue();
+        freeSlotCount += 1;
+        evictions += 1;
+    }
+
+    /**
+     * Drop a cached photo.
+     * @return true if the photo was cached, false otherwise
+     */
+    public synchronized boolean invalidate(int photoId) {
+        Integer slot = slots.remove(photoId);
+        if (slot == null) return false;
+        freeSlots[freeSlotCount] = slot;
+        freeSlotCount += 1;
+        return true;
+    }
+
+    public synchronized void clear() {
+        for (int slot : slots.values()) {
+            freeSlots[freeSlotCount] = slot;
+            freeSlotCount += 1;
+        }
+        slots.clear();
+    }
+
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    public synchronized long getBytes() {
+        return (long) slots.size() * MapPixels.LENGTH;
+    }
+
+    public long getMaxBytes() {
+        return (long) slotCount * MapPixels.LENGTH;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total > 0L ? (double) hits / (double) total : 0.0;
+    }
+}
@@ -0,0 +1,219 @@
+package com.winthier.photos;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Streaming image downloader.
+ *
+ * The response is read into a pooled buffer and the size cap is
+ * enforced while reading, so an oversized file is dropped as soon
+ * as it crosses the cap.  The first bytes are sniffed for a known
+ * image signature and, where the format puts them up front, the
+ * image dimensions, so non-image content and absurdly large images
+ * are rejected before they are downloaded in full.  Before decoding,
+ * the dimensions are checked once more with the ImageReader.
+ *
+ * This class does not depend on the server and can be exercised
+ * against any local HTTP server.
+ */
+final class ImageDownloader {
+    /** Bytes needed to sniff the signature and, if possible, the size. */
+    static final int HEADER_LENGTH = 32;
+    private static final int POOL_SIZE = 4;
+    private static final int TIMEOUT_MILLIS = 10_000;
+    private final int maxFileSize;
+    private final int maxAdminFileSize;
+    private final int maxDimension;
+    private final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The result of sniffing the first bytes of a file.
+     * @param format the informal format name
+     * @param width the width, or -1 if the format does not say early
+     * @param height the height, or -1 if the format does not say early
+     */
+    record Header(String format, int width, int height) { }
+
+    /**
+     * @param maxFileSize the size cap in bytes
+     * @param maxAdminFileSize the size cap in bytes with admin override
+     * @param maxDimension the largest accepted width or height,
+     * ignored with admin override
+     */
+    ImageDownloader(final int maxFileSize, final int maxAdminFileSize, final int maxDimension) {
+        this.maxFileSize = maxFileSize;
+        this.maxAdminFileSize = maxAdminFileSize;
+        this.maxDimension = maxDimension;
+    }
+
+    /**
+     * Download an image with the given URL and return an informative
+     * DownloadResult.
+     * The image will be cropped and scaled to 128x128 pixels if
+     * necessary.  Large images are subsampled while decoding, so
+     * only a fraction of their pixels is ever held in memory.
+     */
+    public DownloadResult download(URL url, boolean adminOverride) {
+        final int cap = adminOverride ? maxAdminFileSize : maxFileSize;
+        byte[] buf = borrow();
+        URLConnection urlConnection = null;
+        try {
+            urlConnection = url.openConnection();
+            urlConnection.setConnectTimeout(TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(TIMEOUT_MILLIS);
+            if (urlConnection instanceof HttpURLConnection http && http.getResponseCode() >= 400) {
+                return DownloadStatus.NOT_FOUND.make();
+            }
+            final long contentLength = urlConnection.getContentLengthLong();
+            if (contentLength > cap) return DownloadStatus.TOO_LARGE.make();
+            final String contentType = urlConnection.getContentType();
+            if (contentType != null && (contentType.startsWith("text/") || contentType.startsWith("application/json"))) {
+                return DownloadStatus.NOT_IMAGE.make();
+            }
+            Header header = null;
+            int total = 0;
+            try (InputStream in = urlConnection.getInputStream()) {
+                while (true) {
+                    if (total == buf.length) {
+                        if (total >= cap) {
+                            if (in.read() == -1) break;
+                            return DownloadStatus.TOO_LARGE.make();
+                        }
+                        buf = Arrays.copyOf(buf, (int) Math.min((long) cap, (long) buf.length * 2L));
+                    }
+                    final int r = in.read(buf, total, buf.length - total);
+                    if (r == -1) break;
+                    total += r;
+                    if (header == null && total >= HEADER_LENGTH) {
+                        header = sniff(buf, total);
+                        if (header == null) return DownloadStatus.NOT_IMAGE.make();
+                        if (!adminOverride && isTooLarge(header.width(), header.height())) {
+                            return DownloadStatus.TOO_LARGE.make();
+                        }
+                    }
+                }
+            }
+            if (total == 0) return DownloadStatus.NOT_FOUND.make();
+            if (header == null && sniff(buf, total) == null) return DownloadStatus.NOT_IMAGE.make();
+            BufferedImage image = decode(buf, total, adminOverride);
+            if (image == null) return DownloadStatus.NOT_IMAGE.make();
+            return DownloadStatus.SUCCESS.make(PhotoScaler.squareAndScale(image));
+        } catch (DimensionException de) {
+            return DownloadStatus.TOO_LARGE.make();
+        } catch (IOException ioe) {
+            return DownloadStatus.NOT_IMAGE.make(ioe);
+        } finally {
+            // Early returns never read the stream, so close the socket here
+            if (urlConnection instanceof HttpURLConnection http) http.disconnect();
+            release(buf);
+        }
+    }
+
+    private boolean isTooLarge(int width, int height) {
+        return width > maxDimension || height > maxDimension;
+    }
+
+    private static final class DimensionException extends IOException {
+        DimensionException(final int width, final int height) {
+            super(width + "x" + height);
+        }
+    }
+
+    private BufferedImage decode(byte[] buf, int length, boolean adminOverride) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(buf, 0, length))) {
+            if (iis == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                final int width = reader.getWidth(0);
+                final int height = reader.getHeight(0);
+                if (!adminOverride && isTooLarge(width, height)) {
+                    throw new DimensionException(width, height);
+                }
+                // Only decode the centered square, at no less than
+                // twice the target size.
+                final int side = Math.min(width, height);
+                final int subsampling = Math.max(1, side / (2 * MapPixels.SIZE));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle((width - side) / 2, (height - side) / 2, side, side));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Identify an image by its signature.
+     * @return the header, or null if this is not a supported image
+     */
+    static Header sniff(byte[] buf, int length) {
+        if (length >= 24
+            && (buf[0] & 0xFF) == 0x89 && buf[1] == 'P' && buf[2] == 'N' && buf[3] == 'G'
+            && buf[12] == 'I' && buf[13] == 'H' && buf[14] == 'D' && buf[15] == 'R') {
+            return new Header("png", readIntBigEndian(buf, 16), readIntBigEndian(buf, 20));
+        }
+        if (length >= 3 && (buf[0] & 0xFF) == 0xFF && (buf[1] & 0xFF) == 0xD8 && (buf[2] & 0xFF) == 0xFF) {
+            return new Header("jpeg", -1, -1);
+        }
+        if (length >= 10 && buf[0] == 'G' && buf[1] == 'I' && buf[2] == 'F' && buf[3] == '8') {
+            return new Header("gif", readShortLittleEndian(buf, 6), readShortLittleEndian(buf, 8));
+        }
+        if (length >= 26 && buf[0] == 'B' && buf[1] == 'M') {
+            return new Header("bmp",
+                              Math.abs(readIntLittleEndian(buf, 18)),
+                              Math.abs(readIntLittleEndian(buf, 22)));
+        }
+        return null;
+    }
+
+    private static int readIntBigEndian(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24)
+            | ((buf[offset + 1] & 0xFF) << 16)
+            | ((buf[offset + 2] & 0xFF) << 8)
+            | (buf[offset + 3] & 0xFF);
+    }
+
+    private static int readIntLittleEndian(byte[] buf, int offset) {
+        return (buf[offset] & 0xFF)
+            | ((buf[offset + 1] & 0xFF) << 8)
+            | ((buf[offset + 2] & 0xFF) << 16)
+            | ((buf[offset + 3] & 0xFF) << 24);
+    }
+
+    private static int readShortLittleEndian(byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8);
+    }
+
+    private byte[] borrow() {
+        byte[] result = pool.poll();
+        return result != null ? result : new byte[maxFileSize];
+    }
+
+    /**
+     * Return a buffer to the pool.  Buffers which grew beyond the
+     * regular cap are left to the garbage collector.
+     */
+    private void release(byte[] buf) {
+        if (buf.length == maxFileSize && pool.size() < POOL_SIZE) {
+            pool.offer(buf);
+        }
+    }
+}
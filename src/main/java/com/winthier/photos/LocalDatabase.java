@@ -0,0 +1,175 @@
+package com.winthier.photos;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Access to `local.db`, which maps photoIds to the mapIds of this
+ * server.
+ *
+ * The database runs in WAL mode.  Statements are prepared once, and
+ * every write is a batch in an explicit transaction, so a bulk
+ * operation costs one commit instead of one per row.  Writes nested
+ * in inTransaction join the outer transaction.
+ *
+ * All methods are synchronized because startup and bulk operations
+ * use this from async threads.  Errors are thrown as
+ * IllegalStateException.
+ */
+final class LocalDatabase {
+    private final File file;
+    private Connection connection;
+    private PreparedStatement selectAll;
+    private PreparedStatement insert;
+    private PreparedStatement replace;
+    private PreparedStatement delete;
+    private int transactionDepth = 0;
+
+    /**
+     * A row of the `photos` table.
+     */
+    record Mapping(int photoId, int mapId) { }
+
+    LocalDatabase(final File file) {
+        this.file = file;
+    }
+
+    public synchronized void open() {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException cnfe) {
+            throw new IllegalStateException(cnfe);
+        }
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("CREATE TABLE IF NOT EXISTS `photos` ("
+                                  + " `id` INTEGER PRIMARY KEY,"
+                                  + " `photo_id` INTEGER NOT NULL,"
+                                  + " `map_id` INTEGER NOT NULL,"
+                                  + " UNIQUE(`photo_id`),"
+                                  + " UNIQUE(`map_id`)"
+                                  + ")");
+            }
+            selectAll = connection.prepareStatement("SELECT `photo_id`, `map_id` FROM `photos`");
+            insert = connection.prepareStatement("INSERT INTO `photos` (`photo_id`, `map_id`) VALUES (?, ?)");
+            replace = connection.prepareStatement("INSERT OR REPLACE INTO `photos` (`photo_id`, `map_id`) VALUES (?, ?)");
+            delete = connection.prepareStatement("DELETE FROM `photos` WHERE `photo_id` = ?");
+        } catch (SQLException sqle) {
+            throw new IllegalStateException(sqle);
+        }
+    }
+
+    public synchronized void close() {
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (SQLException sqle) {
+            sqle.printStackTrace();
+        }
+        connection = null;
+    }
+
+    public synchronized List<Mapping> loadMappings() {
+        List<Mapping> result = new ArrayList<>();
+        try (ResultSet resultSet = selectAll.executeQuery()) {
+            while (resultSet.next()) {
+                result.add(new Mapping(resultSet.getInt("photo_id"), resultSet.getInt("map_id")));
+            }
+        } catch (SQLException sqle) {
+            throw new IllegalStateException(sqle);
+        }
+        return result;
+    }
+
+    public synchronized void insertMappings(Collection<Mapping> mappings) {
+        if (mappings.isEmpty()) return;
+        inTransaction(() -> {
+                try {
+                    for (Mapping mapping : mappings) {
+                        insert.setInt(1, mapping.photoId());
+                        insert.setInt(2, mapping.mapId());
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                } catch (SQLException sqle) {
+                    throw new IllegalStateException(sqle);
+                }
+            });
+    }
+
+    /**
+     * Store a mapping, replacing any old mapping of the same photo
+     * or map in the same statement.
+     */
+    public synchronized void replaceMapping(Mapping mapping) {
+        try {
+            replace.setInt(1, mapping.photoId());
+            replace.setInt(2, mapping.mapId());
+            replace.executeUpdate();
+        } catch (SQLException sqle) {
+            throw new IllegalStateException(sqle);
+        }
+    }
+
+    /**
+     * Delete the mappings of the given photos.
+     * @return the number of deleted rows
+     */
+    public synchronized int deleteMappings(Collection<Integer> photoIds) {
+        if (photoIds.isEmpty()) return 0;
+        final int[] count = new int[1];
+        inTransaction(() -> {
+                try {
+                    for (int photoId : photoIds) {
+                        delete.setInt(1, photoId);
+                        delete.addBatch();
+                    }
+                    for (int it : delete.executeBatch()) {
+                        if (it > 0) count[0] += it;
+                    }
+                } catch (SQLException sqle) {
+                    throw new IllegalStateException(sqle);
+                }
+            });
+        return count[0];
+    }
+
+    /**
+     * Run a task in one transaction.  Writes within the task join it
+     * instead of committing on their own.  The transaction is rolled
+     * back if the task throws.
+     */
+    public synchronized void inTransaction(Runnable task) {
+        if (transactionDepth > 0) {
+            task.run();
+            return;
+        }
+        try {
+            connection.setAutoCommit(false);
+            transactionDepth += 1;
+            try {
+                task.run();
+                connection.commit();
+            } catch (RuntimeException re) {
+                connection.rollback();
+                throw re;
+            } finally {
+                transactionDepth -= 1;
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException sqle) {
+            throw new IllegalStateException(sqle);
+        }
+    }
+}
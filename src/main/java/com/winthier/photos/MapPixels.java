@@ -0,0 +1,72 @@
+package com.winthier.photos;
+
+import java.awt.image.BufferedImage;
+import org.bukkit.map.MapCanvas;
+import org.bukkit.map.MapPalette;
+
+/**
+ * Utility for the map palette representation of a photo: one byte
+ * per pixel, row by row, exactly as the MapCanvas expects them.
+ * Converting an image to palette colors is costly, so this is
+ * meant to happen off the main thread, once per image.
+ */
+final class MapPixels {
+    public static final int SIZE = 128;
+    public static final int LENGTH = SIZE * SIZE;
+
+    private MapPixels() { }
+
+    /**
+     * Convert a 128x128 image to map palette colors.  This method is
+     * thread safe.
+     */
+    @SuppressWarnings("deprecation")
+    public static byte[] fromImage(BufferedImage image) {
+        if (image.getWidth() != SIZE || image.getHeight() != SIZE) {
+            throw new IllegalArgumentException("image=" + image.getWidth() + "x" + image.getHeight());
+        }
+        return MapPalette.imageToBytes(image);
+    }
+
+    /**
+     * Write the palette colors straight to the canvas.
+     */
+    @SuppressWarnings("deprecation")
+    public static void draw(MapCanvas canvas, byte[] pixels) {
+        for (int y = 0; y < SIZE; y += 1) {
+            final int row = y * SIZE;
+            for (int x = 0; x < SIZE; x += 1) {
+                canvas.setPixel(x, y, pixels[row + x]);
+            }
+        }
+    }
+
+    /**
+     * Write only the palette colors which differ from what the
+     * canvas already holds.  The canvas marks the pixels it changes
+     * dirty, so the map tracker sends just the rectangle around them
+     * to the players who can see the map.
+     * @return the area of the dirty rectangle, 0 if nothing changed
+     */
+    @SuppressWarnings("deprecation")
+    public static int drawDelta(MapCanvas canvas, byte[] pixels) {
+        int minX = SIZE;
+        int minY = SIZE;
+        int maxX = -1;
+        int maxY = -1;
+        for (int y = 0; y < SIZE; y += 1) {
+            final int row = y * SIZE;
+            for (int x = 0; x < SIZE; x += 1) {
+                final byte pixel = pixels[row + x];
+                if (canvas.getPixel(x, y) == pixel) continue;
+                canvas.setPixel(x, y, pixel);
+                if (x < minX) minX = x;
+                if (x > maxX) maxX = x;
+                if (y < minY) minY = y;
+                if (y > maxY) maxY = y;
+            }
+        }
+        if (maxX < 0) return 0;
+        return (maxX - minX + 1) * (maxY - minY + 1);
+    }
+}
@@ -0,0 +1,153 @@
+package com.winthier.photos;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.map.MapView;
+import org.bukkit.util.Vector;
+
+/**
+ * Send freshly drawn maps to players, instead of scheduling one task
+ * per draw.  Every player has a queue which holds each map at most
+ * once.  Once per tick, each queue sends up to the configured number
+ * of bytes.  When a queue holds more than that, maps in the hands
+ * come first, then item frames in front of the player, nearest
+ * first, then everything else.
+ *
+ * Players also get a slot here, which PhotoRenderers use to remember
+ * who already received their image.
+ */
+@RequiredArgsConstructor
+final class MapSendQueue implements Listener {
+    private final PhotosPlugin plugin;
+    private final Map<UUID, Map<Integer, MapView>> queues = new HashMap<>();
+    /** Small, reused indexes for online players, see PhotoRenderer. */
+    private final Map<UUID, Integer> slots = new HashMap<>();
+    private final BitSet usedSlots = new BitSet();
+    @Getter private int maxBytesPerTick = 4 * MapPixels.LENGTH;
+    @Getter private double priorityRadius = 32.0;
+    // Stats
+    @Getter private long sent = 0L;
+    @Getter private long merged = 0L;
+    @Getter private long deferred = 0L;
+
+    protected void enable() {
+        maxBytesPerTick = Math.max(MapPixels.LENGTH, plugin.getConfig().getInt("send.max-bytes-per-tick", maxBytesPerTick));
+        priorityRadius = Math.max(0.0, plugin.getConfig().getDouble("send.priority-radius", priorityRadius));
+        Bukkit.getPluginManager().registerEvents(this, plugin);
+        Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+    }
+
+    public int getQueueSize() {
+        int result = 0;
+        for (Map<Integer, MapView> queue : queues.values()) {
+            result += queue.size();
+        }
+        return result;
+    }
+
+    /**
+     * Get the slot of a player.  Slots are dense and reused after a
+     * player quits, so they make compact bitset indexes.
+     */
+    public int slotOf(Player player) {
+        Integer slot = slots.get(player.getUniqueId());
+        if (slot != null) return slot;
+        final int newSlot = usedSlots.nextClearBit(0);
+        usedSlots.set(newSlot);
+        slots.put(player.getUniqueId(), newSlot);
+        return newSlot;
+    }
+
+    /**
+     * Queue a map to be sent to a player.  Duplicates are merged.
+     */
+    public void enqueue(Player player, MapView view) {
+        Map<Integer, MapView> queue = queues.computeIfAbsent(player.getUniqueId(), u -> new LinkedHashMap<>());
+        if (queue.putIfAbsent(view.getId(), view) != null) {
+            merged += 1;
+        }
+    }
+
+    private void tick() {
+        if (queues.isEmpty()) return;
+        final int maxMaps = maxBytesPerTick / MapPixels.LENGTH;
+        for (Iterator<Map.Entry<UUID, Map<Integer, MapView>>> iter = queues.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<UUID, Map<Integer, MapView>> entry = iter.next();
+            Map<Integer, MapView> queue = entry.getValue();
+            Player player = Bukkit.getPlayer(entry.getKey());
+            if (player == null || queue.isEmpty()) {
+                iter.remove();
+                continue;
+            }
+            List<MapView> views = new ArrayList<>(queue.values());
+            if (views.size() > maxMaps) {
+                Map<Integer, Double> priorities = priorities(player);
+                views.sort(Comparator.comparingDouble(v -> priorities.getOrDefault(v.getId(), Double.MAX_VALUE)));
+                deferred += views.size() - maxMaps;
+                views = views.subList(0, maxMaps);
+            }
+            for (MapView view : views) {
+                queue.remove(view.getId());
+                player.sendMap(view);
+                sent += 1;
+            }
+            if (queue.isEmpty()) iter.remove();
+        }
+    }
+
+    /**
+     * Rank the maps a player can see, lower is more urgent.  Maps in
+     * the hands rank first, item frames behind the player rank after
+     * those in front of them.
+     */
+    private Map<Integer, Double> priorities(Player player) {
+        Map<Integer, Double> result = new HashMap<>();
+        putMin(result, PhotoViews.mapIdOf(player.getInventory().getItemInMainHand()), -2.0);
+        putMin(result, PhotoViews.mapIdOf(player.getInventory().getItemInOffHand()), -1.0);
+        if (priorityRadius == 0.0) return result;
+        Location eye = player.getEyeLocation();
+        Vector direction = eye.getDirection();
+        for (Entity entity : player.getNearbyEntities(priorityRadius, priorityRadius, priorityRadius)) {
+            if (!(entity instanceof ItemFrame itemFrame)) continue;
+            final int mapId = PhotoViews.mapIdOf(itemFrame.getItem());
+            if (mapId < 0) continue;
+            Vector offset = itemFrame.getLocation().toVector().subtract(eye.toVector());
+            double distance = offset.lengthSquared();
+            if (offset.dot(direction) < 0.0) distance += priorityRadius * priorityRadius;
+            putMin(result, mapId, distance);
+        }
+        return result;
+    }
+
+    private static void putMin(Map<Integer, Double> map, int mapId, double value) {
+        if (mapId < 0) return;
+        map.merge(mapId, value, Math::min);
+    }
+
+    @EventHandler
+    private void onPlayerQuit(PlayerQuitEvent event) {
+        queues.remove(event.getPlayer().getUniqueId());
+        Integer slot = slots.remove(event.getPlayer().getUniqueId());
+        if (slot != null) {
+            plugin.getPhotos().forgetPlayerSlot(slot);
+            usedSlots.clear(slot);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.winthier.photos;
+
+import com.winthier.photos.LocalDatabase.Mapping;
+import com.winthier.photos.legacy.LegacyDatabase;
+import com.winthier.photos.legacy.LegacyPhoto;
+import com.winthier.photos.sql.SQLPhoto;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.stream.IntStream;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import static net.kyori.adventure.text.Component.text;
+import static net.kyori.adventure.text.format.NamedTextColor.*;
+
+/**
+ * Background job behind `/photoadmin migrate`.  Legacy photos are
+ * migrated in batches ordered by their map id: the rows are inserted
+ * in one statement, the local mappings in one transaction, and the
+ * image files are linked or copied in parallel.  Each finished
+ * batch is recorded in a checkpoint file, so an interrupted or
+ * cancelled run continues where it left off.  Map ids which already
+ * have a local mapping are skipped, should a run be interrupted in
+ * the middle of a batch.
+ *
+ * All rows of a batch share one revision, which is written to a
+ * pending file before they are inserted.  A run which finds that
+ * file deletes the rows of the interrupted batch which never got a
+ * local mapping, so they are not inserted twice.
+ */
+@RequiredArgsConstructor
+final class MigrationJob {
+    private static final int BATCH_SIZE = 500;
+    private static final int PARALLELISM = 8;
+    private static final long PROGRESS_INTERVAL = 5_000L;
+    private static final String CHECKPOINT_FILE = "migrate.checkpoint";
+    private static final String PENDING_FILE = "migrate.pending";
+    private final PhotosPlugin plugin;
+    private final CommandSender sender;
+    private final LegacyDatabase legacyDatabase;
+    @Getter private volatile boolean cancelled = false;
+    @Getter private volatile boolean done = false;
+    private int total = 0;
+    private int migrated = 0;
+    private int skipped = 0;
+    private final AtomicInteger missing = new AtomicInteger();
+
+    public void start() {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, this::run);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void run() {
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        long lastProgress = System.currentTimeMillis();
+        try {
+            List<LegacyPhoto> legacyPhotos = legacyDatabase.loadPhotos();
+            if (legacyPhotos == null) {
+                throw new IllegalStateException("Cannot read legacy database");
+            }
+            legacyPhotos.sort(Comparator.comparingInt(LegacyPhoto::getId));
+            total = legacyPhotos.size();
+            final int checkpoint = readNumber(CHECKPOINT_FILE);
+            List<Mapping> localMappings = plugin.getPhotos().loadLocalMappings();
+            Set<Integer> mappedIds = new HashSet<>();
+            for (Mapping mapping : localMappings) {
+                mappedIds.add(mapping.mapId());
+            }
+            recoverPending(legacyPhotos, localMappings);
+            List<LegacyPhoto> batch = new ArrayList<>(BATCH_SIZE);
+            for (LegacyPhoto legacyPhoto : legacyPhotos) {
+                if (cancelled || !plugin.isEnabled()) break;
+                if (legacyPhoto.getId() <= checkpoint || mappedIds.contains(legacyPhoto.getId())) {
+                    skipped += 1;
+                    continue;
+                }
+                batch.add(legacyPhoto);
+                if (batch.size() < BATCH_SIZE) continue;
+                migrateBatch(batch, pool);
+                batch = new ArrayList<>(BATCH_SIZE);
+                final long now = System.currentTimeMillis();
+                if (now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    message(text("Migrate: " + (migrated + skipped) + "/" + total + " photos...", GRAY));
+                }
+            }
+            if (!cancelled && !batch.isEmpty()) {
+                migrateBatch(batch, pool);
+            }
+        } catch (InterruptedException | ExecutionException | IOException | RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Migration failed", e);
+            message(text("Migration failed after " + migrated + " photos: " + e
+                         + ". Run it again to continue.", RED));
+            done = true;
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        if (!plugin.isEnabled()) return;
+        Bukkit.getScheduler().runTask(plugin, this::finish);
+    }
+
+    /**
+     * Migrate one batch and record it in the checkpoint.  The
+     * runtimes are registered on the main thread afterwards.
+     */
+    private void migrateBatch(List<LegacyPhoto> batch, ForkJoinPool pool)
+        throws InterruptedException, ExecutionException, IOException {
+        final int revision = plugin.getPhotos().nextRevision();
+        writeNumber(PENDING_FILE, revision);
+        List<SQLPhoto> rows = new ArrayList<>(batch.size());
+        for (LegacyPhoto legacyPhoto : batch) {
+            SQLPhoto row = new SQLPhoto(legacyPhoto.getOwner(), legacyPhoto.getName(), legacyPhoto.getColor());
+            row.setRevision(revision);
+            rows.add(row);
+        }
+        plugin.getDatabase().insert(rows);
+        List<Mapping> mappings = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i += 1) {
+            SQLPhoto row = rows.get(i);
+            if (row.getId() == null) {
+                throw new IllegalStateException("Row was not inserted: " + batch.get(i));
+            }
+            mappings.add(new Mapping(row.getId(), batch.get(i).getId()));
+        }
+        plugin.getPhotos().insertLocalMappings(mappings);
+        pool.submit(() -> IntStream.range(0, batch.size()).parallel()
+                    .forEach(i -> linkOrCopy(batch.get(i), rows.get(i))))
+            .get();
+        writeNumber(CHECKPOINT_FILE, batch.get(batch.size() - 1).getId());
+        Files.deleteIfExists(new File(plugin.getDataFolder(), PENDING_FILE).toPath());
+        migrated += batch.size();
+        if (!plugin.isEnabled()) return;
+        Bukkit.getScheduler().runTask(plugin, () -> plugin.getPhotos().putLegacy(rows, mappings));
+    }
+
+    /**
+     * Clean up after a batch which was interrupted.  Its rows carry
+     * the revision in the pending file.  Rows without a local mapping
+     * are deleted, and their photos migrated again.  Rows with one
+     * are kept, and their files linked again, because the batch may
+     * have stopped before that.
+     */
+    private void recoverPending(List<LegacyPhoto> legacyPhotos, List<Mapping> localMappings) throws IOException {
+        final int revision = readNumber(PENDING_FILE);
+        if (revision == 0) return;
+        Map<Integer, Integer> mapIds = new HashMap<>();
+        for (Mapping mapping : localMappings) {
+            mapIds.put(mapping.photoId(), mapping.mapId());
+        }
+        Map<Integer, LegacyPhoto> legacyById = new HashMap<>();
+        for (LegacyPhoto legacyPhoto : legacyPhotos) {
+            legacyById.put(legacyPhoto.getId(), legacyPhoto);
+        }
+        List<SQLPhoto> orphans = new ArrayList<>();
+        List<SQLPhoto> rows = new ArrayList<>();
+        List<Mapping> mappings = new ArrayList<>();
+        for (SQLPhoto row : plugin.getDatabase().find(SQLPhoto.class).eq("revision", revision).findList()) {
+            Integer mapId = mapIds.get(row.getId());
+            LegacyPhoto legacyPhoto = mapId != null ? legacyById.get(mapId) : null;
+            if (legacyPhoto == null) {
+                orphans.add(row);
+                continue;
+            }
+            linkOrCopy(legacyPhoto, row);
+            rows.add(row);
+            mappings.add(new Mapping(row.getId(), mapId));
+        }
+        if (!orphans.isEmpty()) plugin.getDatabase().delete(orphans);
+        plugin.getLogger().info("Migrate: Recovered interrupted batch:"
+                                + " kept=" + rows.size()
+                                + " deleted=" + orphans.size());
+        Files.deleteIfExists(new File(plugin.getDataFolder(), PENDING_FILE).toPath());
+        if (rows.isEmpty() || !plugin.isEnabled()) return;
+        Bukkit.getScheduler().runTask(plugin, () -> plugin.getPhotos().putLegacy(rows, mappings));
+    }
+
+    /**
+     * Hard link the legacy file into the image folder, and fall back
+     * to a copy where the file system does not support links.
+     */
+    private void linkOrCopy(LegacyPhoto legacyPhoto, SQLPhoto row) {
+        Path from = new File(plugin.getDataFolder(), "photos/" + legacyPhoto.filename()).toPath();
+        Path to = new File(plugin.getImageFolder(), row.filename()).toPath();
+        if (!Files.isRegularFile(from)) {
+            plugin.getLogger().warning("File not found: " + from);
+            missing.incrementAndGet();
+            return;
+        }
+        try {
+            Files.deleteIfExists(to);
+            Files.createLink(to, from);
+            return;
+        } catch (IOException | UnsupportedOperationException e) {
+            // Fall through to copy
+        }
+        try {
+            Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ioe) {
+            plugin.getLogger().log(Level.SEVERE, "Copy failed: " + from, ioe);
+            missing.incrementAndGet();
+        }
+    }
+
+    private int readNumber(String filename) throws IOException {
+        Path path = new File(plugin.getDataFolder(), filename).toPath();
+        if (!Files.isRegularFile(path)) return 0;
+        try {
+            return Integer.parseInt(Files.readString(path).trim());
+        } catch (NumberFormatException nfe) {
+            plugin.getLogger().warning("Invalid migration file: " + path);
+            return 0;
+        }
+    }
+
+    private void writeNumber(String filename, int value) throws IOException {
+        Path path = new File(plugin.getDataFolder(), filename).toPath();
+        Path tmp = new File(plugin.getDataFolder(), filename + ".tmp").toPath();
+        Files.writeString(tmp, Integer.toString(value));
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Report the result on the main thread, and retire the legacy
+     * database once everything has been migrated.  This runs after
+     * the runtimes of the last batch have been registered.
+     */
+    private void finish() {
+        done = true;
+        // Maps loaded during the migration were not known to be photos
+        plugin.getViews().materializeVisible();
+        if (cancelled) {
+            sender.sendMessage(text("Migration cancelled after " + (migrated + skipped) + "/" + total
+                                    + " photos. Run it again to continue.", YELLOW));
+            return;
+        }
+        legacyDatabase.invalidate();
+        new File(plugin.getDataFolder(), CHECKPOINT_FILE).delete();
+        if (missing.get() > 0) {
+            sender.sendMessage(text(missing.get() + " legacy image files could not be migrated, see console", RED));
+        }
+        sender.sendMessage(text("Migrated " + migrated + " photos"
+                                + (skipped > 0 ? ", " + skipped + " were already migrated" : ""), AQUA));
+    }
+
+    private void message(Component message) {
+        if (!plugin.isEnabled()) return;
+        Bukkit.getScheduler().runTask(plugin, () -> sender.sendMessage(message));
+    }
+}
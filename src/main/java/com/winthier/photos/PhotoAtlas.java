@@ -0,0 +1,129 @@
+package com.winthier.photos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A derived, memory-mapped file of map palette records, so a cold
+ * render can skip opening and decoding the PNG.
+ *
+ * Records have a fixed size and sit at the offset given by their
+ * photoId, so the file only ever grows.  Each record remembers the
+ * modification time of the PNG it was made from.  A record whose
+ * time no longer matches is considered stale and will be rebuilt by
+ * the next load.  The file is mapped lazily in regions of
+ * REGION_RECORDS records.
+ *
+ * The atlas is a cache.  It may be deleted at any time while the
+ * server is offline.
+ */
+final class PhotoAtlas {
+    private static final int MAGIC = 0x50484f54;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = HEADER_SIZE + MapPixels.LENGTH;
+    private static final int REGION_RECORDS = 1024;
+    private static final long REGION_SIZE = (long) REGION_RECORDS * RECORD_SIZE;
+    private final File file;
+    private FileChannel channel;
+    private MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+    PhotoAtlas(final File file) {
+        this.file = file;
+    }
+
+    public synchronized void open() throws IOException {
+        channel = FileChannel.open(file.toPath(),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+    }
+
+    public synchronized void close() {
+        regions = new MappedByteBuffer[0];
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        channel = null;
+    }
+
+    private MappedByteBuffer region(int index) throws IOException {
+        if (index >= regions.length) {
+            regions = Arrays.copyOf(regions, index + 1);
+        }
+        if (regions[index] == null) {
+            regions[index] = channel.map(FileChannel.MapMode.READ_WRITE, index * REGION_SIZE, REGION_SIZE);
+        }
+        return regions[index];
+    }
+
+    /**
+     * Check if a region may be mapped without growing the file.
+     */
+    private boolean exists(int index) throws IOException {
+        return (index < regions.length && regions[index] != null)
+            || (index + 1) * REGION_SIZE <= channel.size();
+    }
+
+    /**
+     * Read the pixels of a photo.  Lookups never grow the file, and
+     * the pixels are copied while the lock is held, so a concurrent
+     * write cannot tear them.
+     * @param photoId the photo id
+     * @param sourceModified the modification time of the PNG
+     * @return a copy of the pixels, or null if the record is missing
+     * or stale
+     */
+    public synchronized byte[] read(int photoId, long sourceModified) {
+        if (channel == null || photoId < 0) return null;
+        final int index = photoId / REGION_RECORDS;
+        try {
+            if (!exists(index)) return null;
+            MappedByteBuffer region = region(index);
+            final int offset = (photoId % REGION_RECORDS) * RECORD_SIZE;
+            if (region.getInt(offset) != MAGIC) return null;
+            if (region.getLong(offset + 8) != sourceModified) return null;
+            byte[] result = new byte[MapPixels.LENGTH];
+            region.get(offset + HEADER_SIZE, result, 0, MapPixels.LENGTH);
+            return result;
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Store the pixels of a photo, replacing any previous record.
+     */
+    public synchronized void write(int photoId, long sourceModified, byte[] pixels) {
+        if (channel == null || photoId < 0) return;
+        try {
+            MappedByteBuffer region = region(photoId / REGION_RECORDS);
+            final int offset = (photoId % REGION_RECORDS) * RECORD_SIZE;
+            region.putInt(offset, 0);
+            region.put(offset + HEADER_SIZE, pixels, 0, MapPixels.LENGTH);
+            region.putLong(offset + 8, sourceModified);
+            region.putInt(offset, MAGIC);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    public synchronized void invalidate(int photoId) {
+        if (channel == null || photoId < 0) return;
+        final int index = photoId / REGION_RECORDS;
+        try {
+            // Do not grow the file just to clear a record
+            if (!exists(index)) return;
+            region(index).putInt((photoId % REGION_RECORDS) * RECORD_SIZE, 0);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+}
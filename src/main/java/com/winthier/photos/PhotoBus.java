@@ -0,0 +1,148 @@
+package com.winthier.photos;
+
+import com.cavetale.core.connect.Connect;
+import com.cavetale.core.event.connect.ConnectMessageEvent;
+import java.util.UUID;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+
+/**
+ * Tell the other servers sharing the photo database which photos
+ * changed, so they can refresh just those instead of waiting for the
+ * next poll.  Polling remains as a slow fallback for lost messages.
+ * New consents are announced the same way, and so are bulk changes,
+ * by the revision all their rows share.
+ *
+ * The transport is configurable: "connect" broadcasts via Core, and
+ * "loopback" delivers every message back to this server on the next
+ * tick, which is meant for testing.  "none" disables the bus.
+ */
+@RequiredArgsConstructor
+final class PhotoBus implements Listener {
+    public static final String CHANNEL = "photos:change";
+    private static final String CONSENT = "CONSENT";
+    private static final String REVISION = "REVISION";
+    private final PhotosPlugin plugin;
+    private Transport transport;
+    @Getter private long sent = 0L;
+    @Getter private long received = 0L;
+
+    public enum Change {
+        NEW,
+        NAME,
+        COLOR,
+        IMAGE,
+        OWNER;
+    }
+
+    @FunctionalInterface
+    interface Transport {
+        void broadcast(String payload);
+    }
+
+    protected void enable() {
+        String type = plugin.getConfig().getString("bus.transport", "connect");
+        switch (type) {
+        case "none":
+            transport = null;
+            return;
+        case "loopback":
+            transport = payload -> Bukkit.getScheduler().runTask(plugin, () -> receive(payload));
+            break;
+        case "connect":
+            transport = payload -> Connect.get().broadcastMessage(CHANNEL, payload);
+            Bukkit.getPluginManager().registerEvents(this, plugin);
+            break;
+        default:
+            plugin.getLogger().warning("Unknown bus transport: " + type);
+            transport = null;
+            return;
+        }
+    }
+
+    public boolean isActive() {
+        return transport != null;
+    }
+
+    /**
+     * Announce a change.  Call this once the change is stored in the
+     * database.
+     */
+    public void publish(int photoId, Change change) {
+        if (transport == null) return;
+        transport.broadcast(change.name() + " " + photoId);
+        sent += 1;
+    }
+
+    /**
+     * Announce that a player accepted the rules.  Call this once the
+     * consent is stored in the database.
+     */
+    public void publishConsent(UUID uuid) {
+        if (transport == null) return;
+        transport.broadcast(CONSENT + " " + uuid);
+        sent += 1;
+    }
+
+    /**
+     * Announce a bulk change of all rows with the given revision.
+     * Call this once the change is stored in the database.
+     */
+    public void publishRevision(int revision) {
+        if (transport == null) return;
+        transport.broadcast(REVISION + " " + revision);
+        sent += 1;
+    }
+
+    private void receive(String payload) {
+        String[] tokens = payload.split(" ", 2);
+        if (tokens.length != 2) {
+            plugin.getLogger().warning("[Bus] Invalid payload: " + payload);
+            return;
+        }
+        if (CONSENT.equals(tokens[0])) {
+            final UUID uuid;
+            try {
+                uuid = UUID.fromString(tokens[1]);
+            } catch (IllegalArgumentException iae) {
+                plugin.getLogger().warning("[Bus] Invalid payload: " + payload);
+                return;
+            }
+            received += 1;
+            plugin.getConsentCache().remember(uuid);
+            return;
+        }
+        if (REVISION.equals(tokens[0])) {
+            final int revision;
+            try {
+                revision = Integer.parseInt(tokens[1]);
+            } catch (IllegalArgumentException iae) {
+                plugin.getLogger().warning("[Bus] Invalid payload: " + payload);
+                return;
+            }
+            received += 1;
+            plugin.getPhotos().refreshRevision(revision);
+            return;
+        }
+        final Change change;
+        final int photoId;
+        try {
+            change = Change.valueOf(tokens[0]);
+            photoId = Integer.parseInt(tokens[1]);
+        } catch (IllegalArgumentException iae) {
+            plugin.getLogger().warning("[Bus] Invalid payload: " + payload);
+            return;
+        }
+        received += 1;
+        plugin.getPhotos().refresh(photoId, change);
+    }
+
+    @EventHandler
+    private void onConnectMessage(ConnectMessageEvent event) {
+        if (!CHANNEL.equals(event.getChannel())) return;
+        receive(event.getPayload());
+    }
+}
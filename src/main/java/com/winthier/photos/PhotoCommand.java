@@ -5,11 +5,9 @@ import com.cavetale.core.command.CommandArgCompleter;
 import com.cavetale.core.command.CommandWarn;
 import com.cavetale.mytems.Mytems;
 import com.cavetale.mytems.item.photo.Photo;
-import com.winthier.photos.sql.SQLConsent;
 import com.winthier.photos.sql.SQLPhoto;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Date;
 import org.bukkit.Color;
 import org.bukkit.Sound;
 import org.bukkit.SoundCategory;
@@ -62,15 +60,13 @@ final class PhotoCommand extends AbstractCommand<PhotosPlugin> {
     }
 
     private void photos(Player player) {
-        plugin.getDatabase().find(SQLConsent.class)
-            .eq("player", player.getUniqueId())
-            .findRowCountAsync(count -> {
-                    if (count == 0) {
-                        rules(player);
-                        return;
-                    }
-                    new PhotosMenu(plugin, plugin.getPhotos().find(player.getUniqueId())).open(player);
-                });
+        plugin.getConsentCache().check(player.getUniqueId(), consented -> {
+                if (!consented) {
+                    rules(player);
+                    return;
+                }
+                new PhotosMenu(plugin, plugin.getPhotos().find(player.getUniqueId())).open(player);
+            });
     }
 
     private boolean load(Player player, String[] args) {
@@ -78,23 +74,20 @@ final class PhotoCommand extends AbstractCommand<PhotosPlugin> {
         ItemStack item = photoInHand(player);
         PhotoRuntime photo = photoOfItem(player, item);
         URL url = parseURL(args[0]);
-        plugin.getDatabase().find(SQLConsent.class)
-            .eq("player", player.getUniqueId())
-            .findRowCountAsync(count -> {
-                    if (count == 0) {
-                        rules(player);
-                        return;
-                    }
-                    putOnCooldown(player);
-                    player.sendMessage(text("Loading " + url + "...", color(SEPIA)));
-                    plugin.downloadPhotoAsync(photo, url, false, (result) -> {
-                            if (result.status().isSuccessful()) {
-                                photo.getRow().setUpdated(new Date());
-                                plugin.getDatabase().updateAsync(photo.getRow(), null, "updated");
-                            }
-                            acceptDownload(player, photo, url, result);
-                        });
-                });
+        plugin.getConsentCache().check(player.getUniqueId(), consented -> {
+                if (!consented) {
+                    rules(player);
+                    return;
+                }
+                putOnCooldown(player);
+                player.sendMessage(text("Loading " + url + "...", color(SEPIA)));
+                plugin.downloadPhotoAsync(photo, url, false, (result) -> {
+                        if (result.status().isSuccessful()) {
+                            plugin.getPhotos().save(photo, PhotoBus.Change.IMAGE);
+                        }
+                        acceptDownload(player, photo, url, result);
+                    });
+            });
         return true;
     }
 
@@ -108,8 +101,7 @@ final class PhotoCommand extends AbstractCommand<PhotosPlugin> {
             throw new CommandWarn("Name cannot be longer than 127 characters.");
         }
         row.setName(newName);
-        row.setUpdated(new Date());
-        plugin.getDatabase().updateAsync(photo.getRow(), null, "name", "updated");
+        plugin.getPhotos().save(photo, PhotoBus.Change.NAME, "name");
         updatePhotoItem(photo, item);
         player.sendMessage(join(noSeparators(), text("Updated name: ", color(SEPIA)), text(newName, WHITE)));
         return true;
@@ -130,8 +122,7 @@ final class PhotoCommand extends AbstractCommand<PhotosPlugin> {
             color = parseColor(args[0]);
         }
         row.setColor(color.asRGB());
-        row.setUpdated(new Date());
-        plugin.getDatabase().updateAsync(row, null, "color", "updated");
+        plugin.getPhotos().save(photo, PhotoBus.Change.COLOR, "color");
         updatePhotoItem(photo, item);
         player.sendMessage(text("Photo color updated", color(row.getColor())));
         return true;
@@ -144,7 +135,7 @@ final class PhotoCommand extends AbstractCommand<PhotosPlugin> {
     private void accept(Player player) {
         player.sendMessage(text("Thank you for accepting the rules!", GREEN));
         player.playSound(player.getLocation(), Sound.ENTITY_PLAYER_LEVELUP, SoundCategory.MASTER, 0.25f, 2.0f);
-        plugin.getDatabase().insertIgnoreAsync(new SQLConsent(player.getUniqueId()), null);
+        plugin.getConsentCache().accept(player.getUniqueId());
     }
 
     /**
@@ -169,6 +160,10 @@ final class PhotoCommand extends AbstractCommand<PhotosPlugin> {
             player.sendMessage(text("This file is not an image!", RED));
             break;
         }
+        case BUSY: {
+            player.sendMessage(text("The server is busy. Please try again later.", RED));
+            break;
+        }
         case NOSAVE: {
             player.sendMessage(text("An internal error occured. Please contact an administrator.", RED));
             break;
@@ -0,0 +1,257 @@
+package com.winthier.photos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * The worker threads for all image Input/Output, so Photos no longer
+ * competes with every other plugin for the shared async pool.
+ *
+ * Loads and downloads wait in separate bounded queues.  Loads always
+ * go first because a player is looking at them, and downloads may
+ * never occupy the last worker.  Load requests for a photoId which
+ * is already queued or running are merged into the pending one, and
+ * a photo can only have one download pending at a time.
+ *
+ * Callbacks are always run on the main thread.
+ */
+@RequiredArgsConstructor
+final class PhotoExecutor {
+    private final PhotosPlugin plugin;
+    private final ArrayDeque<LoadJob> loadQueue = new ArrayDeque<>();
+    private final ArrayDeque<DownloadJob> downloadQueue = new ArrayDeque<>();
+    private final Map<Integer, LoadJob> pendingLoads = new HashMap<>();
+    private final Set<Integer> pendingDownloads = new HashSet<>();
+    private final List<Thread> workers = new ArrayList<>();
+    @Getter private int threadCount = 4;
+    @Getter private int maxLoadQueue = 1024;
+    @Getter private int maxDownloadQueue = 16;
+    @Getter private boolean virtualThreads = false;
+    private int activeDownloads = 0;
+    private boolean running = false;
+    @Getter private final Metrics loadMetrics = new Metrics();
+    @Getter private final Metrics downloadMetrics = new Metrics();
+
+    /**
+     * Counters for one queue.  Latency is split into the time spent
+     * waiting in the queue and the time spent running.
+     */
+    public static final class Metrics {
+        @Getter private long completed;
+        @Getter private long rejected;
+        @Getter private long merged;
+        private long waitNanos;
+        private long runNanos;
+
+        public synchronized long getAverageWaitMillis() {
+            return completed > 0L ? waitNanos / completed / 1_000_000L : 0L;
+        }
+
+        public synchronized long getAverageRunMillis() {
+            return completed > 0L ? runNanos / completed / 1_000_000L : 0L;
+        }
+
+        private synchronized void complete(long queued, long started, long finished) {
+            completed += 1;
+            waitNanos += started - queued;
+            runNanos += finished - started;
+        }
+
+        private synchronized void reject() {
+            rejected += 1;
+        }
+
+        private synchronized void merge() {
+            merged += 1;
+        }
+    }
+
+    private abstract static class Job {
+        protected final int photoId;
+        protected final long queued = System.nanoTime();
+
+        Job(final int photoId) {
+            this.photoId = photoId;
+        }
+    }
+
+    private static final class LoadJob extends Job {
+        private final PhotoRuntime photo;
+        private final List<Consumer<byte[]>> callbacks = new ArrayList<>();
+
+        LoadJob(final PhotoRuntime photo) {
+            super(photo.getPhotoId());
+            this.photo = photo;
+        }
+    }
+
+    private static final class DownloadJob extends Job {
+        private final Runnable task;
+
+        DownloadJob(final int photoId, final Runnable task) {
+            super(photoId);
+            this.task = task;
+        }
+    }
+
+    protected void enable() {
+        ConfigurationSection config = plugin.getConfig().getConfigurationSection("executor");
+        if (config != null) {
+            threadCount = Math.max(1, config.getInt("threads", threadCount));
+            maxLoadQueue = Math.max(1, config.getInt("max-load-queue", maxLoadQueue));
+            maxDownloadQueue = Math.max(1, config.getInt("max-download-queue", maxDownloadQueue));
+            virtualThreads = config.getBoolean("virtual-threads", virtualThreads);
+        }
+        synchronized (this) {
+            running = true;
+        }
+        for (int i = 0; i < threadCount; i += 1) {
+            final String name = "Photos-IO-" + i;
+            Thread thread = virtualThreads
+                ? Thread.ofVirtual().name(name).unstarted(this::work)
+                : Thread.ofPlatform().name(name).daemon(true).unstarted(this::work);
+            workers.add(thread);
+            thread.start();
+        }
+    }
+
+    protected void disable() {
+        synchronized (this) {
+            running = false;
+            loadQueue.clear();
+            downloadQueue.clear();
+            pendingLoads.clear();
+            pendingDownloads.clear();
+            notifyAll();
+        }
+        for (Thread thread : workers) {
+            thread.interrupt();
+        }
+        workers.clear();
+    }
+
+    public synchronized int getLoadQueueSize() {
+        return loadQueue.size();
+    }
+
+    public synchronized int getDownloadQueueSize() {
+        return downloadQueue.size();
+    }
+
+    /**
+     * Load the pixels of a photo, see PhotosPlugin#loadPixels.
+     * @return true if the load was queued or merged, false if the
+     * queue is full
+     */
+    public synchronized boolean load(PhotoRuntime photo, Consumer<byte[]> callback) {
+        LoadJob job = pendingLoads.get(photo.getPhotoId());
+        if (job != null) {
+            job.callbacks.add(callback);
+            loadMetrics.merge();
+            return true;
+        }
+        if (!running || loadQueue.size() >= maxLoadQueue) {
+            loadMetrics.reject();
+            return false;
+        }
+        job = new LoadJob(photo);
+        job.callbacks.add(callback);
+        pendingLoads.put(job.photoId, job);
+        loadQueue.add(job);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Run a download task.  The task is responsible for scheduling
+     * its own callback.
+     * @return true if the download was queued, false if the queue is
+     * full or the photo already has a download pending
+     */
+    public synchronized boolean download(int photoId, Runnable task) {
+        if (!running || downloadQueue.size() >= maxDownloadQueue || pendingDownloads.contains(photoId)) {
+            downloadMetrics.reject();
+            return false;
+        }
+        pendingDownloads.add(photoId);
+        downloadQueue.add(new DownloadJob(photoId, task));
+        notifyAll();
+        return true;
+    }
+
+    private synchronized Job take() throws InterruptedException {
+        while (true) {
+            if (!running) return null;
+            if (!loadQueue.isEmpty()) return loadQueue.poll();
+            if (!downloadQueue.isEmpty() && (activeDownloads < threadCount - 1 || threadCount == 1)) {
+                activeDownloads += 1;
+                return downloadQueue.poll();
+            }
+            wait();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            final Job job;
+            try {
+                job = take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (job == null) return;
+            final long started = System.nanoTime();
+            if (job instanceof LoadJob loadJob) {
+                runLoad(loadJob, started);
+            } else if (job instanceof DownloadJob downloadJob) {
+                runDownload(downloadJob, started);
+            }
+        }
+    }
+
+    private void runLoad(LoadJob job, long started) {
+        byte[] pixels = null;
+        try {
+            pixels = plugin.loadPixels(job.photo);
+        } catch (RuntimeException re) {
+            re.printStackTrace();
+        }
+        final List<Consumer<byte[]>> callbacks;
+        synchronized (this) {
+            pendingLoads.remove(job.photoId);
+            callbacks = List.copyOf(job.callbacks);
+        }
+        loadMetrics.complete(job.queued, started, System.nanoTime());
+        if (!plugin.isEnabled()) return;
+        final byte[] result = pixels;
+        Bukkit.getScheduler().runTask(plugin, () -> {
+                for (Consumer<byte[]> callback : callbacks) {
+                    callback.accept(result);
+                }
+            });
+    }
+
+    private void runDownload(DownloadJob job, long started) {
+        try {
+            job.task.run();
+        } catch (RuntimeException re) {
+            re.printStackTrace();
+        }
+        synchronized (this) {
+            activeDownloads -= 1;
+            pendingDownloads.remove(job.photoId);
+            notifyAll();
+        }
+        downloadMetrics.complete(job.queued, started, System.nanoTime());
+    }
+}
@@ -0,0 +1,131 @@
+package com.winthier.photos;
+
+import com.cavetale.mytems.Mytems;
+import com.cavetale.mytems.item.photo.Photo;
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.EntitiesLoadEvent;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Warm the ImageCache for photos in item frames as soon as their
+ * chunk loads, so they are ready by the time a player looks at them.
+ *
+ * Found photos are queued, each at most once, up to a bounded queue
+ * size.  Every tick, a few of them are loaded on the PhotoExecutor,
+ * with a cap on prefetches in flight, so renderers which actually
+ * wait for their pixels keep priority.  Prefetched photos are
+ * remembered until their first render, which tells hit from miss.
+ */
+@RequiredArgsConstructor
+final class PhotoPrefetcher implements Listener {
+    private static final int MAX_WARMED = 4096;
+    private final PhotosPlugin plugin;
+    private final Set<Integer> queue = new LinkedHashSet<>();
+    /** Prefetched photoIds which were not rendered yet, oldest first. */
+    private final Set<Integer> warmed = new LinkedHashSet<>();
+    @Getter private int maxQueue = 256;
+    @Getter private int maxPerTick = 4;
+    @Getter private int maxInFlight = 2;
+    @Getter private int inFlight = 0;
+    // Stats
+    @Getter private long queued = 0L;
+    @Getter private long dropped = 0L;
+    @Getter private long prefetched = 0L;
+    @Getter private long hits = 0L;
+    @Getter private long misses = 0L;
+
+    protected void enable() {
+        if (!plugin.getConfig().getBoolean("prefetch.enabled", true)) return;
+        maxQueue = Math.max(1, plugin.getConfig().getInt("prefetch.max-queue", maxQueue));
+        maxPerTick = Math.max(1, plugin.getConfig().getInt("prefetch.max-per-tick", maxPerTick));
+        maxInFlight = Math.max(1, plugin.getConfig().getInt("prefetch.max-in-flight", maxInFlight));
+        Bukkit.getPluginManager().registerEvents(this, plugin);
+        Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public double getHitRate() {
+        final long total = hits + misses;
+        return total > 0L ? (double) hits / (double) total : 0.0;
+    }
+
+    @EventHandler
+    private void onEntitiesLoad(EntitiesLoadEvent event) {
+        for (Entity entity : event.getEntities()) {
+            if (entity instanceof ItemFrame itemFrame) offer(itemFrame);
+        }
+    }
+
+    @EventHandler
+    private void onEntityAddToWorld(EntityAddToWorldEvent event) {
+        if (event.getEntity() instanceof ItemFrame itemFrame) offer(itemFrame);
+    }
+
+    private void offer(ItemFrame itemFrame) {
+        ItemStack item = itemFrame.getItem();
+        if (item == null || !Mytems.PHOTO.isItem(item)) return;
+        final int photoId = Photo.getPhotoId(item);
+        if (photoId <= 0 || queue.contains(photoId) || plugin.getImageCache().contains(photoId)) return;
+        if (queue.size() >= maxQueue) {
+            dropped += 1;
+            return;
+        }
+        queue.add(photoId);
+        queued += 1;
+    }
+
+    private void tick() {
+        int budget = maxPerTick;
+        for (Iterator<Integer> iter = queue.iterator(); iter.hasNext() && budget > 0 && inFlight < maxInFlight;) {
+            final int photoId = iter.next();
+            iter.remove();
+            PhotoRuntime photo = plugin.getPhotos().ofPhotoId(photoId);
+            if (photo == null || !photo.isReady() || plugin.getImageCache().contains(photoId)) continue;
+            budget -= 1;
+            inFlight += 1;
+            boolean accepted = plugin.loadPixelsAsync(photo, pixels -> {
+                    inFlight -= 1;
+                    if (pixels == null) return;
+                    prefetched += 1;
+                    warmed.add(photoId);
+                    if (warmed.size() > MAX_WARMED) {
+                        Iterator<Integer> oldest = warmed.iterator();
+                        oldest.next();
+                        oldest.remove();
+                    }
+                });
+            if (!accepted) {
+                // The executor is busy, try again next tick
+                inFlight -= 1;
+                queue.add(photoId);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called by a PhotoRenderer the first time it needs its pixels.
+     * @param cached true if the pixels were in the ImageCache
+     */
+    protected void recordRender(int photoId, boolean cached) {
+        if (!warmed.remove(photoId)) return;
+        if (cached) {
+            hits += 1;
+        } else {
+            misses += 1;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.winthier.photos;
 
-import java.awt.image.BufferedImage;
+import java.util.BitSet;
+import lombok.Getter;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.map.MapCanvas;
@@ -9,16 +10,28 @@ import org.bukkit.map.MapView;
 
 /**
  * A simple renderer which is tasked with rendering one Photos on its
- * map.
+ * map.  Loading and drawing are rationed by the RenderScheduler, and
+ * the result is sent via the MapSendQueue.
+ *
+ * The canvas is shared by all players.  Which players received the
+ * current image is tracked by their MapSendQueue slot, so each of
+ * them gets it sent exactly once.
  */
 final class PhotoRenderer extends MapRenderer {
     private final PhotosPlugin plugin;
     private final PhotoRuntime photo;
     private boolean paused = false;
     private boolean drawn = false;
-    private BufferedImage image;
-    private static boolean asyncLoading = false;
-    private static boolean drawImageThisTick = false;
+    /** The canvas holds a complete photo, so redraws may be deltas. */
+    private boolean painted = false;
+    /** Slots of the players who received the current image. */
+    private final BitSet sentTo = new BitSet();
+    /** The last tick a player looked at this map, see PhotoViews. */
+    @Getter private int lastRenderTick;
+    private byte[] pixels;
+    private int generation = 0;
+    /** Drawing happens on the main thread only, so one buffer will do. */
+    private static final byte[] SCRATCH = new byte[MapPixels.LENGTH];
 
     protected PhotoRenderer(final PhotosPlugin plugin, final PhotoRuntime photo) {
         super(false);
@@ -34,39 +47,110 @@ final class PhotoRenderer extends MapRenderer {
      */
     @Override
     public void render(MapView view, MapCanvas canvas, Player player) {
-        if (paused || drawn || asyncLoading || drawImageThisTick) return;
-        if (image == null) {
+        lastRenderTick = Bukkit.getCurrentTick();
+        if (paused) return;
+        if (drawn) {
+            sendOnce(view, player);
+            return;
+        }
+        RenderScheduler scheduler = plugin.getRenderScheduler();
+        if (!scheduler.canDraw()) return;
+        final long start = System.nanoTime();
+        final byte[] source;
+        if (pixels != null) {
+            source = pixels;
+        } else if (plugin.getImageCache().read(photo.getPhotoId(), SCRATCH)) {
+            source = SCRATCH;
+            plugin.getPrefetcher().recordRender(photo.getPhotoId(), true);
+        } else {
+            plugin.getPrefetcher().recordRender(photo.getPhotoId(), false);
             paused = true;
-            plugin.loadImageAsync(photo, this::accept);
-            asyncLoading = true;
+            scheduler.requestLoad(this);
             return;
         }
-        canvas.drawImage(0, 0, image);
-        drawImageThisTick = true;
+        if (painted) {
+            // Only the dirty rectangle reaches the players, via the
+            // map tracker.  Players who had the previous image are
+            // up to date once it has.
+            final int area = MapPixels.drawDelta(canvas, source);
+            scheduler.recordDraw(System.nanoTime() - start);
+            scheduler.recordDelta(area);
+        } else {
+            MapPixels.draw(canvas, source);
+            scheduler.recordDraw(System.nanoTime() - start);
+            sentTo.clear();
+            painted = true;
+        }
+        // The canvas keeps its own copy, the ImageCache keeps ours.
+        pixels = null;
         drawn = true;
-        Bukkit.getScheduler().runTask(plugin, () -> player.sendMap(view));
+        sendOnce(view, player);
+    }
+
+    private void sendOnce(MapView view, Player player) {
+        final int slot = plugin.getMapSendQueue().slotOf(player);
+        if (sentTo.get(slot)) return;
+        sentTo.set(slot);
+        plugin.getMapSendQueue().enqueue(player, view);
+    }
+
+    /**
+     * Called when the player in this slot quit.
+     */
+    protected void forget(int slot) {
+        sentTo.clear(slot);
+    }
+
+    /**
+     * Called by the RenderScheduler when it is our turn to load.
+     */
+    protected void load() {
+        final int loadGeneration = generation;
+        boolean queued = plugin.loadPixelsAsync(photo, newPixels -> {
+                plugin.getRenderScheduler().loadFinished();
+                if (loadGeneration != generation) return;
+                accept(newPixels);
+            });
+        if (!queued) {
+            // Try again on a later render call
+            plugin.getRenderScheduler().loadFinished();
+            paused = false;
+        }
     }
 
     protected void refresh() {
+        plugin.getRenderScheduler().cancelLoad(this);
+        generation += 1;
         paused = false;
         drawn = false;
-        asyncLoading = false;
-        image = null;
+        pixels = null;
+    }
+
+    /**
+     * Forget everything that was drawn.  Called when this renderer is
+     * detached, which drops its canvas.
+     */
+    protected void reset() {
+        refresh();
+        painted = false;
+        sentTo.clear();
     }
 
-    protected void accept(BufferedImage newImage) {
-        asyncLoading = false;
-        if (newImage == null) {
-            image = plugin.getDefaultImage();
+    /**
+     * Called when this renderer is attached again.
+     */
+    protected void wake() {
+        lastRenderTick = Bukkit.getCurrentTick();
+    }
+
+    protected void accept(byte[] newPixels) {
+        if (newPixels == null) {
+            pixels = plugin.getDefaultPixels();
         } else {
-            image = newImage;
+            pixels = newPixels;
         }
-        if (image == null) return;
+        if (pixels == null) return;
         paused = false;
         drawn = false;
     }
-
-    protected static void onTick() {
-        drawImageThisTick = false;
-    }
 }
@@ -4,10 +4,12 @@ import com.winthier.photos.sql.SQLPhoto;
 import com.winthier.playercache.PlayerCache;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import net.kyori.adventure.text.Component;
+import org.bukkit.inventory.ItemStack;
 import org.bukkit.map.MapView;
 import static net.kyori.adventure.text.Component.join;
 import static net.kyori.adventure.text.Component.space;
@@ -20,15 +22,26 @@ import static net.kyori.adventure.text.format.TextColor.color;
 @Getter @Setter @RequiredArgsConstructor
 final class PhotoRuntime {
     private final int photoId; // informal
-    private int mapId; // informal
+    private int mapId = -1; // informal, -1 until mapped
     protected SQLPhoto row;
     protected PhotoRenderer renderer;
     protected MapView mapView;
+    /** Where this photo is filed in the owner index, see Photos#reindex. */
+    private boolean indexed;
+    private UUID indexedOwner;
+    /** The menu icon and the name and color it was made for, see PhotosMenu#iconOf. */
+    private ItemStack menuIcon;
+    private String menuIconName;
+    private int menuIconColor;
+    /** The renderer was swapped for the wake renderer, see PhotoViews. */
+    private boolean detached;
 
+    /**
+     * Ready photos have their row.  The MapView and renderer are only
+     * created once needed, see Photos#materialize.
+     */
     public boolean isReady() {
-        return row != null
-            && renderer != null
-            && mapView != null;
+        return row != null;
     }
 
     public Component toComponent() {
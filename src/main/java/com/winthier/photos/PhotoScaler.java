@@ -0,0 +1,138 @@
+package com.winthier.photos;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+
+/**
+ * Crop and scale images to the size of a map.  Downscaling averages
+ * the exact area each target pixel covers, in two separable passes,
+ * with colors weighted by alpha so transparent pixels do not bleed
+ * their color into the result.
+ */
+final class PhotoScaler {
+    private PhotoScaler() { }
+
+    /**
+     * Crop an image to a centered square and scale it to 128x128.
+     */
+    public static BufferedImage squareAndScale(BufferedImage image) {
+        final int side = Math.min(image.getWidth(), image.getHeight());
+        if (image.getWidth() != side || image.getHeight() != side) {
+            image = image.getSubimage((image.getWidth() - side) / 2, (image.getHeight() - side) / 2, side, side);
+        }
+        if (side > MapPixels.SIZE) return downscale(image, MapPixels.SIZE);
+        if (side < MapPixels.SIZE) return upscale(image, MapPixels.SIZE);
+        return toArgb(image);
+    }
+
+    private static BufferedImage toArgb(BufferedImage image) {
+        if (image.getType() == TYPE_INT_ARGB && image.getRaster().getParent() == null) return image;
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), TYPE_INT_ARGB);
+        Graphics2D gfx = result.createGraphics();
+        gfx.drawImage(image, 0, 0, null);
+        gfx.dispose();
+        return result;
+    }
+
+    private static BufferedImage upscale(BufferedImage image, int size) {
+        BufferedImage result = new BufferedImage(size, size, TYPE_INT_ARGB);
+        Graphics2D gfx = result.createGraphics();
+        gfx.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        gfx.drawImage(image, 0, 0, size, size, null);
+        gfx.dispose();
+        return result;
+    }
+
+    /**
+     * Area averaging downscale of a square image.
+     */
+    public static BufferedImage downscale(BufferedImage image, int size) {
+        final int src = image.getWidth();
+        final int[] in = image.getRGB(0, 0, src, src, null, 0, src);
+        final Weights weights = new Weights(src, size);
+        // Horizontal pass: src x src => size x src, 4 channels
+        final float[] mid = new float[size * src * 4];
+        for (int y = 0; y < src; y += 1) {
+            for (int x = 0; x < size; x += 1) {
+                float a = 0f;
+                float r = 0f;
+                float g = 0f;
+                float b = 0f;
+                for (int i = weights.start[x]; i < weights.end[x]; i += 1) {
+                    final int argb = in[y * src + i];
+                    final float alpha = (float) (argb >>> 24) * weights.weight(x, i);
+                    a += alpha;
+                    r += (float) ((argb >> 16) & 0xFF) * alpha;
+                    g += (float) ((argb >> 8) & 0xFF) * alpha;
+                    b += (float) (argb & 0xFF) * alpha;
+                }
+                final int o = (y * size + x) * 4;
+                mid[o] = a;
+                mid[o + 1] = r;
+                mid[o + 2] = g;
+                mid[o + 3] = b;
+            }
+        }
+        // Vertical pass: size x src => size x size
+        final int[] out = new int[size * size];
+        for (int y = 0; y < size; y += 1) {
+            for (int x = 0; x < size; x += 1) {
+                float a = 0f;
+                float r = 0f;
+                float g = 0f;
+                float b = 0f;
+                for (int j = weights.start[y]; j < weights.end[y]; j += 1) {
+                    final float w = weights.weight(y, j);
+                    final int o = (j * size + x) * 4;
+                    a += mid[o] * w;
+                    r += mid[o + 1] * w;
+                    g += mid[o + 2] * w;
+                    b += mid[o + 3] * w;
+                }
+                if (a <= 0f) continue;
+                out[y * size + x] = (clamp(a) << 24)
+                    | (clamp(r / a) << 16)
+                    | (clamp(g / a) << 8)
+                    | clamp(b / a);
+            }
+        }
+        BufferedImage result = new BufferedImage(size, size, TYPE_INT_ARGB);
+        result.setRGB(0, 0, size, size, out, 0, size);
+        return result;
+    }
+
+    private static int clamp(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    /**
+     * The source pixels covered by each target pixel, and how much of
+     * each is covered.  The weights of one target pixel add up to 1.
+     */
+    private static final class Weights {
+        private final int[] start;
+        private final int[] end;
+        private final float ratio;
+
+        Weights(final int src, final int dst) {
+            this.ratio = (float) src / (float) dst;
+            this.start = new int[dst];
+            this.end = new int[dst];
+            for (int i = 0; i < dst; i += 1) {
+                start[i] = (int) Math.floor(i * ratio);
+                end[i] = Math.min(src, (int) Math.ceil((i + 1) * ratio));
+            }
+        }
+
+        /**
+         * The share of source pixel j within target pixel i.
+         */
+        float weight(int i, int j) {
+            final float lo = Math.max(i * ratio, (float) j);
+            final float hi = Math.min((i + 1) * ratio, (float) (j + 1));
+            return Math.max(0f, hi - lo) / ratio;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.winthier.photos;
+
+import com.winthier.photos.util.IntObjectMap;
+import java.util.HashSet;
+import java.util.Set;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.MapInitializeEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.MapMeta;
+import org.bukkit.map.MapCanvas;
+import org.bukkit.map.MapRenderer;
+import org.bukkit.map.MapView;
+
+/**
+ * Keep MapViews and renderers for the photos somebody looks at.
+ *
+ * A photo gets its MapView once the server loads the map, usually
+ * because an item or item frame shows it, or once an item of it is
+ * made, see Photos#materialize.  Renderers which have not rendered
+ * for a while are swapped for a shared wake renderer, which drops
+ * their canvas, and attached again on the next render call.
+ */
+@RequiredArgsConstructor
+final class PhotoViews implements Listener {
+    private final PhotosPlugin plugin;
+    /** Maps the server loaded before the photos were set up. */
+    private final IntObjectMap<MapView> loaded = new IntObjectMap<>();
+    private boolean buffering = true;
+    private final WakeRenderer wakeRenderer = new WakeRenderer();
+    private final Set<Integer> waking = new HashSet<>();
+    @Getter private int idleTicks = 20 * 60 * 10;
+    // Stats
+    @Getter private int attached = 0;
+    @Getter private long materializedCount = 0L;
+    @Getter private long detachedCount = 0L;
+    @Getter private long wokenCount = 0L;
+
+    protected void enable() {
+        idleTicks = Math.max(0, plugin.getConfig().getInt("views.idle-minutes", 10)) * 20 * 60;
+        Bukkit.getPluginManager().registerEvents(this, plugin);
+        if (idleTicks > 0) {
+            Bukkit.getScheduler().runTaskTimer(plugin, this::sweep, 1200L, 1200L);
+        }
+    }
+
+    @EventHandler
+    private void onMapInitialize(MapInitializeEvent event) {
+        MapView mapView = event.getMap();
+        if (plugin.getPhotos().materialize(mapView) == null && buffering) {
+            loaded.put(mapView.getId(), mapView);
+        }
+    }
+
+    /**
+     * Called once the photos are set up.  Maps loaded from now on
+     * are either known photos or none at all, so the remaining
+     * buffered maps are dropped.
+     */
+    protected void stopBuffering() {
+        buffering = false;
+        loaded.clear();
+    }
+
+    /**
+     * Take a MapView which was loaded before its photo was known.
+     */
+    protected MapView takeLoaded(int mapId) {
+        return loaded.remove(mapId);
+    }
+
+    /**
+     * Called by Photos whenever a photo got its MapView and renderer.
+     */
+    protected void materialized(PhotoRuntime photo) {
+        attached += 1;
+        materializedCount += 1;
+    }
+
+    /**
+     * Materialize the photos in loaded item frames and player
+     * inventories.  Their maps may have been loaded before this
+     * plugin was enabled.
+     */
+    protected void materializeVisible() {
+        for (World world : Bukkit.getWorlds()) {
+            for (ItemFrame itemFrame : world.getEntitiesByClass(ItemFrame.class)) {
+                materialize(mapIdOf(itemFrame.getItem()));
+            }
+        }
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            for (ItemStack item : player.getInventory().getContents()) {
+                materialize(mapIdOf(item));
+            }
+        }
+    }
+
+    private void materialize(int mapId) {
+        if (mapId < 0) return;
+        PhotoRuntime photo = plugin.getPhotos().ofMapId(mapId);
+        if (photo != null) plugin.getPhotos().materialize(photo);
+    }
+
+    private void sweep() {
+        detachedCount += plugin.getPhotos().detachIdle(idleTicks);
+    }
+
+    /**
+     * Swap the renderer of a photo for the wake renderer if nobody
+     * looked at it for the given number of ticks.
+     */
+    protected boolean detachIfIdle(PhotoRuntime photo, int ticks) {
+        if (photo.isDetached() || photo.getRenderer() == null || photo.getMapView() == null) return false;
+        if (Bukkit.getCurrentTick() - photo.getRenderer().getLastRenderTick() < ticks) return false;
+        photo.getMapView().removeRenderer(photo.getRenderer());
+        photo.getRenderer().reset();
+        photo.getMapView().addRenderer(wakeRenderer);
+        photo.setDetached(true);
+        attached -= 1;
+        return true;
+    }
+
+    /**
+     * Remove the renderer of a photo which is going away.
+     */
+    protected void release(PhotoRuntime photo) {
+        if (photo.getMapView() == null || photo.getRenderer() == null) return;
+        if (photo.isDetached()) {
+            photo.getMapView().removeRenderer(wakeRenderer);
+            photo.setDetached(false);
+        } else {
+            photo.getMapView().removeRenderer(photo.getRenderer());
+            attached -= 1;
+        }
+    }
+
+    /**
+     * Attach the renderer of a detached photo again.
+     */
+    private void wake(int mapId) {
+        waking.remove(mapId);
+        PhotoRuntime photo = plugin.getPhotos().ofMapId(mapId);
+        if (photo == null || !photo.isDetached() || photo.getMapView() == null || photo.getRenderer() == null) return;
+        photo.getMapView().removeRenderer(wakeRenderer);
+        photo.getRenderer().wake();
+        photo.getMapView().addRenderer(photo.getRenderer());
+        photo.setDetached(false);
+        attached += 1;
+        wokenCount += 1;
+    }
+
+    /**
+     * Stands in for detached PhotoRenderers.  The renderers of a
+     * MapView cannot change while it renders, so waking up happens
+     * on the next tick.  The canvas stays blank meanwhile, and
+     * players keep seeing the image they already have.
+     */
+    private final class WakeRenderer extends MapRenderer {
+        WakeRenderer() {
+            super(false);
+        }
+
+        @Override
+        public void render(MapView view, MapCanvas canvas, Player player) {
+            final int mapId = view.getId();
+            if (!waking.add(mapId)) return;
+            Bukkit.getScheduler().runTask(plugin, () -> wake(mapId));
+        }
+    }
+
+    protected static int mapIdOf(ItemStack item) {
+        if (item == null || !item.hasItemMeta()) return -1;
+        if (!(item.getItemMeta() instanceof MapMeta meta) || !meta.hasMapView()) return -1;
+        MapView view = meta.getMapView();
+        return view != null ? view.getId() : -1;
+    }
+}
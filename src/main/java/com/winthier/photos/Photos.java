@@ -1,18 +1,25 @@
 package com.winthier.photos;
 
+import com.winthier.photos.LocalDatabase.Mapping;
 import com.winthier.photos.sql.SQLPhoto;
+import com.winthier.photos.sql.SQLPhotoChange;
+import com.winthier.photos.util.IntObjectMap;
 import java.io.File;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.TreeMap;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.Bukkit;
 import org.bukkit.map.MapRenderer;
@@ -25,23 +32,46 @@ import org.bukkit.map.MapView;
 public final class Photos {
     private final PhotosPlugin plugin;
     private List<PhotoRuntime> all = new ArrayList<>();
-    private Map<Integer, PhotoRuntime> photoIdMap = new TreeMap<>();
-    private Map<Integer, PhotoRuntime> mapIdMap = new TreeMap<>();
-    private File databaseFile;
-    private Connection localConnection;
-    private Date lastUpdate;
+    private IntObjectMap<PhotoRuntime> photoIdMap = new IntObjectMap<>();
+    private IntObjectMap<PhotoRuntime> mapIdMap = new IntObjectMap<>();
+    /** owner => photos sorted by photoId.  The null key holds admin photos. */
+    private Map<UUID, List<PhotoRuntime>> ownerIndex = new HashMap<>();
+    private LocalDatabase localDatabase;
+    /**
+     * Revisions drawn by other servers may be stored out of order,
+     * so each poll looks back this many revisions.
+     */
+    private static final int REVISION_OVERLAP = 64;
+    /** The highest revision seen in the database. */
+    private int highWater = 0;
+    private boolean updating = false;
+    /** Copies of the rows as last read from the database. */
+    private final Map<Integer, SQLPhoto> versions = new ConcurrentHashMap<>();
 
     protected void enable() {
         plugin.getDataFolder().mkdirs();
-        databaseFile = new File(plugin.getDataFolder(), "local.db");
+        localDatabase = new LocalDatabase(new File(plugin.getDataFolder(), "local.db"));
+        localDatabase.open();
         load();
-        Bukkit.getScheduler().runTaskTimer(plugin, this::update, 600L, 600L);
+    }
+
+    /**
+     * Set the polling timer.  This happens once the photos are
+     * loaded.
+     */
+    private void startUpdates() {
+        // With push invalidation, polling only catches lost messages
+        final long interval = plugin.getBus().isActive()
+            ? Math.max(600L, plugin.getConfig().getLong("bus.fallback-poll-seconds", 300L) * 20L)
+            : 600L;
+        Bukkit.getScheduler().runTaskTimer(plugin, this::update, interval, interval);
     }
 
     private void clear() {
         all.clear();
         photoIdMap.clear();
         mapIdMap.clear();
+        ownerIndex.clear();
     }
 
     public PhotoRuntime ofPhotoId(int photoId) {
@@ -52,101 +82,251 @@ public final class Photos {
         return mapIdMap.get(mapId);
     }
 
+    /**
+     * Load all photos in stages.  The local mappings and the remote
+     * rows are read concurrently off the main thread, and indexed on
+     * the main thread.  MapViews are not touched here, see
+     * #materialize.  Until then, this index is empty.
+     */
     private void load() {
-        try {
-            Class.forName("org.sqlite.JDBC");
-        } catch (ClassNotFoundException cnfe) {
-            throw new IllegalStateException(cnfe);
-        }
-        try {
-            localConnection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile);
-            localConnection.createStatement()
-                .execute("CREATE TABLE IF NOT EXISTS `photos` ("
-                         + " `id` INTEGER PRIMARY KEY,"
-                         + " `photo_id` INTEGER NOT NULL,"
-                         + " `map_id` INTEGER NOT NULL,"
-                         + " UNIQUE(`photo_id`),"
-                         + " UNIQUE(`map_id`)"
-                         + ")");
-            ResultSet resultSet = localConnection.createStatement()
-                .executeQuery("SELECT * FROM `photos`");
-            while (resultSet.next()) {
-                int photoId = resultSet.getInt("photo_id");
-                int mapId = resultSet.getInt("map_id");
-                put(photoId, mapId);
-            }
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
+        final long start = System.nanoTime();
+        final Executor async = task -> Bukkit.getScheduler().runTaskAsynchronously(plugin, task);
+        final long[] localNanos = new long[1];
+        final long[] remoteNanos = new long[1];
+        CompletableFuture<List<Mapping>> localFuture = CompletableFuture.supplyAsync(() -> {
+                List<Mapping> result = localDatabase.loadMappings();
+                localNanos[0] = System.nanoTime() - start;
+                return result;
+            }, async);
+        CompletableFuture<List<SQLPhoto>> remoteFuture = CompletableFuture.supplyAsync(() -> {
+                resetLegacyRevisions();
+                List<SQLPhoto> result = plugin.getDatabase().find(SQLPhoto.class).findList();
+                remoteNanos[0] = System.nanoTime() - start;
+                return result;
+            }, async);
+        localFuture.thenAcceptBoth(remoteFuture, (mappings, rows) -> {
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                        final long setupStart = System.nanoTime();
+                        try {
+                            setup(mappings, rows);
+                        } catch (RuntimeException re) {
+                            failStartup(re);
+                            return;
+                        }
+                        plugin.getViews().stopBuffering();
+                        final long setupNanos = System.nanoTime() - setupStart;
+                        plugin.getLogger().info("Startup:"
+                                                + " local=" + (localNanos[0] / 1_000_000L) + "ms"
+                                                + " (" + mappings.size() + " mappings)"
+                                                + " remote=" + (remoteNanos[0] / 1_000_000L) + "ms"
+                                                + " (" + rows.size() + " rows)"
+                                                + " setup=" + (setupNanos / 1_000_000L) + "ms"
+                                                + " total=" + ((System.nanoTime() - start) / 1_000_000L) + "ms");
+                        plugin.getViews().materializeVisible();
+                        startUpdates();
+                    });
+            }).exceptionally(throwable -> {
+                    Bukkit.getScheduler().runTask(plugin, () -> failStartup(throwable));
+                    return null;
+                });
+    }
+
+    /**
+     * Without its photos, the plugin would hand out blank maps and
+     * new photos under ids it does not know, so it disables itself.
+     */
+    private void failStartup(Throwable throwable) {
+        plugin.getLogger().log(Level.SEVERE, "Startup failed, disabling", throwable);
+        Bukkit.getPluginManager().disablePlugin(plugin);
+    }
+
+    /**
+     * Main thread stage of the startup.  Index the mappings and
+     * store the rows.
+     */
+    private void setup(List<Mapping> mappings, List<SQLPhoto> rows) {
+        for (Mapping mapping : mappings) {
+            put(mapping.photoId(), mapping.mapId());
         }
-        lastUpdate = new Date();
-        for (SQLPhoto row : plugin.getDatabase().find(SQLPhoto.class).findList()) {
-            put(row);
+        for (SQLPhoto row : rows) {
+            putRow(row);
+            highWater = Math.max(highWater, row.getRevision());
         }
         for (PhotoRuntime photo : all) {
             if (!photo.isReady()) {
                 plugin.getLogger().warning("Photo not ready:"
                                            + " photoId=" + photo.getPhotoId()
-                                           + " mapId=" + photo.getMapId()
-                                           + " row=" + (photo.getRow() != null)
-                                           + " view=" + (photo.getMapView() != null)
-                                           + " renderer=" + (photo.getRenderer() != null));
+                                           + " mapId=" + photo.getMapId());
             }
         }
     }
 
-    protected int pruneLocal() {
-        List<Integer> ids = plugin.getDatabase().find(SQLPhoto.class)
-            .findValues("id", Integer.class);
-        int count = 0;
+    /**
+     * The outcome of pruneLocal.
+     * @param mappings the deleted rows of local.db
+     * @param photos the photos removed from memory
+     * @param images the cached images dropped
+     */
+    public record PruneResult(int mappings, int photos, int images) {
+        public boolean isEmpty() {
+            return mappings == 0 && photos == 0;
+        }
+    }
+
+    /**
+     * Forget all photos which no longer exist in the database: their
+     * local mappings, runtimes, renderers and cached images.  Photos
+     * above the last scanned id were created during the scan and are
+     * kept.
+     * @param remoteIds the ids of all scanned rows in the database
+     * @param lastId the highest scanned id
+     */
+    protected PruneResult pruneLocal(BitSet remoteIds, int lastId) {
+        List<PhotoRuntime> pruned = new ArrayList<>();
         for (PhotoRuntime it : all) {
-            if (!ids.contains(it.getPhotoId())) {
-                try {
-                    localConnection.createStatement().execute("DELETE FROM `photos` WHERE `photo_id` = " +  it.getPhotoId());
-                } catch (SQLException sqle) {
-                    throw new IllegalStateException(sqle);
-                }
-                count += 1;
+            if (it.getPhotoId() > lastId) continue;
+            if (it.getPhotoId() < 0 || !remoteIds.get(it.getPhotoId())) {
+                pruned.add(it);
             }
         }
-        return count;
+        if (pruned.isEmpty()) return new PruneResult(0, 0, 0);
+        List<Integer> prunedIds = new ArrayList<>(pruned.size());
+        for (PhotoRuntime photo : pruned) {
+            prunedIds.add(photo.getPhotoId());
+        }
+        final int mappings = localDatabase.deleteMappings(prunedIds);
+        int images = 0;
+        for (PhotoRuntime photo : pruned) {
+            photoIdMap.remove(photo.getPhotoId());
+            if (mapIdMap.get(photo.getMapId()) == photo) mapIdMap.remove(photo.getMapId());
+            versions.remove(photo.getPhotoId());
+            photo.setRow(null);
+            reindex(photo);
+            if (plugin.getImageCache().invalidate(photo.getPhotoId())) images += 1;
+            if (photo.getRenderer() != null) {
+                plugin.getRenderScheduler().cancelLoad(photo.getRenderer());
+                plugin.getViews().release(photo);
+                photo.setRenderer(null);
+            }
+            photo.setMapView(null);
+        }
+        Set<PhotoRuntime> prunedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        prunedSet.addAll(pruned);
+        all.removeIf(prunedSet::contains);
+        return new PruneResult(mappings, pruned.size(), images);
     }
 
+    /**
+     * Poll the database for changed rows.  Only rows whose revision
+     * is above the highest revision seen so far, minus a small
+     * overlap, are fetched, and the high-water mark comes from the
+     * rows themselves.  Rows are compared by version off the main
+     * thread, and only the delta is applied on it.
+     */
     public void update() {
-        Date date = lastUpdate;
-        lastUpdate = new Date();
-        plugin.getDatabase().find(SQLPhoto.class)
-            .gte("updated", date)
-            .findListAsync(list -> {
-                    for (SQLPhoto row : list) {
-                        PhotoRuntime photo = photoIdMap.get(row.getId());
-                        if (photo == null) {
-                            photo = put(row);
-                            plugin.getLogger().info("[Update] New photo:"
-                                                    + " photoId=" + photo.getPhotoId()
-                                                    + " mapId=" + photo.getMapId());
-                        } else if (row.equals(photo.getRow())) {
-                            continue;
-                        } else {
-                            photo.setRow(row);
+        if (updating) return;
+        updating = true;
+        final int since = highWater;
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                List<SQLPhoto> changed = new ArrayList<>();
+                int newHighWater = since;
+                try {
+                    for (SQLPhoto row : plugin.getDatabase().find(SQLPhoto.class)
+                             .gt("revision", since - REVISION_OVERLAP)
+                             .findList()) {
+                        newHighWater = Math.max(newHighWater, row.getRevision());
+                        SQLPhoto known = versions.get(row.getId());
+                        if (known != null && known.isSameVersion(row)) continue;
+                        changed.add(row);
+                    }
+                } catch (RuntimeException re) {
+                    plugin.getLogger().log(Level.SEVERE, "[Update] " + re, re);
+                }
+                final int finalHighWater = newHighWater;
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                        updating = false;
+                        highWater = finalHighWater;
+                        applyChanges(changed);
+                    });
+            });
+    }
+
+    /**
+     * Fetch a single row which is known to have changed, usually
+     * because another server said so via the PhotoBus.
+     */
+    protected void refresh(int photoId, PhotoBus.Change change) {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                SQLPhoto row = plugin.getDatabase().find(SQLPhoto.class).eq("id", photoId).findUnique();
+                if (row == null) return;
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                        PhotoRuntime photo = photoIdMap.get(photoId);
+                        if (change == PhotoBus.Change.IMAGE && photo != null) {
+                            plugin.getImageCache().invalidate(photoId);
                             if (photo.getRenderer() != null) {
                                 photo.getRenderer().refresh();
                             }
-                            plugin.getLogger().info("[Update] Photo changed:"
-                                                    + " photoId=" + photo.getPhotoId()
-                                                    + " mapId=" + photo.getMapId());
                         }
+                        applyChanges(List.of(row));
+                    });
+            });
+    }
+
+    /**
+     * Fetch all rows of a bulk change at once.  They share the
+     * revision, see PhotoBus#publishRevision.
+     */
+    protected void refreshRevision(int revision) {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                List<SQLPhoto> rows = plugin.getDatabase().find(SQLPhoto.class).eq("revision", revision).findList();
+                if (rows.isEmpty()) return;
+                Bukkit.getScheduler().runTask(plugin, () -> applyChanges(rows));
+            });
+    }
+
+    private void applyChanges(List<SQLPhoto> changed) {
+        for (SQLPhoto row : changed) {
+            PhotoRuntime photo = photoIdMap.get(row.getId());
+            if (photo == null) {
+                photo = putRow(row);
+                plugin.getLogger().info("[Update] New photo:"
+                                        + " photoId=" + photo.getPhotoId()
+                                        + " mapId=" + photo.getMapId());
+            } else if (photo.getRow() != null && photo.getRow().isSameVersion(row)) {
+                // Changed by this server
+                versions.put(row.getId(), copyOf(row));
+            } else {
+                final boolean metadataOnly = isMetadataOnly(photo.getRow(), row);
+                photo.setRow(row);
+                reindex(photo);
+                versions.put(row.getId(), copyOf(row));
+                if (!metadataOnly) {
+                    plugin.getImageCache().invalidate(photo.getPhotoId());
+                    if (photo.getRenderer() != null) {
+                        photo.getRenderer().refresh();
                     }
-                });
+                }
+                plugin.getLogger().info("[Update] Photo changed:"
+                                        + " photoId=" + photo.getPhotoId()
+                                        + " mapId=" + photo.getMapId());
+            }
+        }
     }
 
     /**
-     * Store the database row.
-     * Wart: This will create a MapView if none is present.  Usually
-     * this method is expected to be called after all views have been
-     * set up.  Should that ever change, consider refactoring the
-     * MapView creation.
+     * Figure out if a remote change left the pixels alone.  Image
+     * changes store their revision in the imageRevision column, so
+     * any other change keeps it.
      */
-    private PhotoRuntime put(SQLPhoto row) {
+    private static boolean isMetadataOnly(SQLPhoto oldRow, SQLPhoto newRow) {
+        return oldRow != null && oldRow.getImageRevision() == newRow.getImageRevision();
+    }
+
+    /**
+     * Store the database row.  The MapView is left for later, see
+     * #materialize.
+     */
+    private PhotoRuntime putRow(SQLPhoto row) {
         PhotoRuntime photo = photoIdMap.get(row.getId());
         if (photo == null) {
             photo = new PhotoRuntime(row.getId());
@@ -154,26 +334,70 @@ public final class Photos {
             all.add(photo);
         }
         photo.setRow(row);
-        if (photo.getMapView() != null) return photo;
-        MapView mapView = Bukkit.createMap(Bukkit.getWorlds().get(0));
-        final int mapId = mapView.getId();
-        mapIdMap.put(mapId, photo);
-        try {
-            localConnection.createStatement()
-                .executeUpdate("INSERT INTO `photos`"
-                               + " (`photo_id`, `map_id`)"
-                               + " VALUES"
-                               + " (" + row.getId() + ", " + mapId + ")");
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(row.toString(), sqle);
+        reindex(photo);
+        versions.put(row.getId(), copyOf(row));
+        return photo;
+    }
+
+    /**
+     * Make sure a photo has its MapView and renderer, and return the
+     * MapView.  Photos which were mapped before get their old
+     * MapView back, all others get a new one.  Call this whenever
+     * the map id of a photo is needed.
+     */
+    protected MapView materialize(PhotoRuntime photo) {
+        if (photo.getMapView() != null) return photo.getMapView();
+        MapView mapView = null;
+        if (photo.getMapId() >= 0) {
+            @SuppressWarnings("deprecation") MapView oldMapView = Bukkit.getMap(photo.getMapId());
+            // Loading the MapView may have materialized the photo already
+            if (photo.getMapView() != null) return photo.getMapView();
+            mapView = oldMapView;
+            if (mapView == null) {
+                plugin.getLogger().warning("MapView does not exist:"
+                                           + " photoId=" + photo.getPhotoId()
+                                           + " mapId=" + photo.getMapId());
+                if (mapIdMap.get(photo.getMapId()) == photo) mapIdMap.remove(photo.getMapId());
+            }
+        }
+        if (mapView == null) {
+            mapView = Bukkit.createMap(Bukkit.getWorlds().get(0));
+            mapIdMap.put(mapView.getId(), photo);
+            // The photo may still have a mapping to its lost MapView
+            localDatabase.replaceMapping(new Mapping(photo.getPhotoId(), mapView.getId()));
         }
         initializeMapView(mapView, photo);
+        return mapView;
+    }
+
+    /**
+     * Attach a MapView which the server just loaded, if it belongs to
+     * a photo.
+     * @return the photo or null
+     */
+    protected PhotoRuntime materialize(MapView mapView) {
+        PhotoRuntime photo = mapIdMap.get(mapView.getId());
+        if (photo == null || photo.getMapView() != null) return photo;
+        initializeMapView(mapView, photo);
         return photo;
     }
 
+    /**
+     * Copy only the version fields of a row.
+     */
+    private static SQLPhoto copyOf(SQLPhoto row) {
+        SQLPhoto result = new SQLPhoto();
+        result.setId(row.getId());
+        result.setUpdated(row.getUpdated());
+        result.setRevision(row.getRevision());
+        return result;
+    }
+
     /**
      * Save a mapping from photoId to mapId.  This is only used during
-     * the initial load, before database rows are loaded.
+     * the initial load, before database rows are loaded, and by the
+     * legacy migration.  Unless the server already loaded the
+     * MapView, it is attached later, see #materialize.
      */
     private PhotoRuntime put(int photoId, int mapId) {
         PhotoRuntime photo = photoIdMap.get(photoId);
@@ -184,14 +408,8 @@ public final class Photos {
         }
         photo.setMapId(mapId);
         mapIdMap.put(mapId, photo);
-        @SuppressWarnings("deprecation") MapView mapView = Bukkit.getMap((short) mapId);
-        if (mapView == null) {
-            plugin.getLogger().warning("MapView does not exist:"
-                                       + " photoId=" + photo.getPhotoId()
-                                       + " mapId=" + photo.getMapId());
-            return photo;
-        }
-        initializeMapView(mapView, photo);
+        MapView loaded = plugin.getViews().takeLoaded(mapId);
+        if (loaded != null) initializeMapView(loaded, photo);
         return photo;
     }
 
@@ -207,40 +425,222 @@ public final class Photos {
         photo.setRenderer(renderer);
         photo.setMapView(mapView);
         photo.setMapId(mapView.getId());
+        plugin.getViews().materialized(photo);
     }
 
+    /**
+     * Create a photo.  The row is inserted right away, so the caller
+     * gets its photoId.  Its revision is drawn off the main thread,
+     * see #save, and the other servers are told after that.
+     */
     public PhotoRuntime create(UUID owner, String name, int color) {
         SQLPhoto row = new SQLPhoto(owner, name, color);
         plugin.getDatabase().insert(row);
-        PhotoRuntime photo = put(row);
+        PhotoRuntime photo = putRow(row);
+        save(photo, PhotoBus.Change.NEW);
         return photo;
     }
 
-    public PhotoRuntime createLegacy(int mapId, UUID owner, String name, int color) {
-        SQLPhoto row = new SQLPhoto(owner, name, color);
-        plugin.getDatabase().insert(row);
-        try {
-            localConnection.createStatement()
-                .executeUpdate("INSERT INTO `photos`"
-                               + " (`photo_id`, `map_id`)"
-                               + " VALUES"
-                               + " (" + row.getId() + ", " + mapId + ")");
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
-        }
-        put(row.getId(), mapId);
-        PhotoRuntime photo = put(row);
-        return photo;
+    /**
+     * Draw the next revision from the database sequence.  It is
+     * higher than every revision drawn before, by any server.  Only
+     * the newest row of the sequence is kept, because the database
+     * may derive the next id from it after a restart.  Call this off
+     * the main thread.
+     */
+    protected int nextRevision() {
+        SQLPhotoChange change = new SQLPhotoChange();
+        plugin.getDatabase().insert(change);
+        if (change.getId() == null) {
+            throw new IllegalStateException("Cannot draw revision");
+        }
+        plugin.getDatabase().find(SQLPhotoChange.class).lt("id", change.getId()).delete();
+        return change.getId();
     }
 
-    public List<PhotoRuntime> find(UUID owner) {
-        List<PhotoRuntime> result = new ArrayList<>();
+    /**
+     * Store the given columns of a changed row off the main thread,
+     * along with a new revision, and tell the other servers.
+     */
+    public void save(PhotoRuntime photo, PhotoBus.Change change, String... columns) {
+        final int photoId = photo.getPhotoId();
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                final int revision = nextRevision();
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                        SQLPhoto row = photo.getRow();
+                        if (row == null) return;
+                        if (revision <= row.getRevision()) {
+                            // A later save overtook this one, draw again
+                            save(photo, change, columns);
+                            return;
+                        }
+                        row.touch(revision);
+                        versions.put(photoId, copyOf(row));
+                        List<String> allColumns = new ArrayList<>(List.of(columns));
+                        allColumns.add("updated");
+                        allColumns.add("revision");
+                        if (change == PhotoBus.Change.IMAGE) {
+                            row.setImageRevision(revision);
+                            allColumns.add("imageRevision");
+                        }
+                        plugin.getDatabase().updateAsync(row, c -> plugin.getBus().publish(photoId, change),
+                                                      allColumns.toArray(new String[0]));
+                    });
+            });
+    }
+
+    /**
+     * Revisions used to be counted per row.  Before the sequence is
+     * first used, reset them, so they stay below all revisions to
+     * come.  This runs off the main thread.
+     */
+    private void resetLegacyRevisions() {
+        if (plugin.getDatabase().find(SQLPhotoChange.class).limit(1).findList().isEmpty()) {
+            final int count = plugin.getDatabase().update(SQLPhoto.class)
+                .set("revision", 0)
+                .where(c -> c.gt("revision", 0))
+                .sync();
+            if (count > 0) plugin.getLogger().info("Reset " + count + " legacy revisions");
+        }
+    }
+
+    protected void disable() {
+        if (localDatabase != null) localDatabase.close();
+    }
+
+    /**
+     * Load all local mappings.  This may be called off the main
+     * thread.
+     */
+    protected List<Mapping> loadLocalMappings() {
+        return localDatabase.loadMappings();
+    }
+
+    /**
+     * Store local mappings in one batch.  This may be called off the
+     * main thread.
+     */
+    protected void insertLocalMappings(List<Mapping> mappings) {
+        localDatabase.insertMappings(mappings);
+    }
+
+    /**
+     * Register migrated legacy photos whose rows and mappings have
+     * already been stored.  Both lists are expected to be in the
+     * same order.
+     */
+    protected void putLegacy(List<SQLPhoto> rows, List<Mapping> mappings) {
+        for (int i = 0; i < rows.size(); i += 1) {
+            Mapping mapping = mappings.get(i);
+            put(mapping.photoId(), mapping.mapId());
+            putRow(rows.get(i));
+        }
+    }
+
+    /**
+     * Clear the slot of a player who quit from all renderers, so the
+     * next player in that slot receives every photo again.
+     */
+    protected void forgetPlayerSlot(int slot) {
         for (PhotoRuntime photo : all) {
-            if (!photo.isReady()) continue;
-            if (Objects.equals(owner, photo.getRow().getOwner())) {
-                result.add(photo);
-            }
+            if (photo.getRenderer() != null) photo.getRenderer().forget(slot);
+        }
+    }
+
+    /**
+     * Detach the renderers which have not rendered in a while.
+     * @return the number of detached renderers
+     */
+    protected int detachIdle(int idleTicks) {
+        int count = 0;
+        for (PhotoRuntime photo : all) {
+            if (plugin.getViews().detachIfIdle(photo, idleTicks)) count += 1;
+        }
+        return count;
+    }
+
+    /**
+     * Find all photos of an owner, sorted by photoId.
+     */
+    public List<PhotoRuntime> find(UUID owner) {
+        List<PhotoRuntime> list = ownerIndex.get(owner);
+        if (list == null) return new ArrayList<>();
+        List<PhotoRuntime> result = new ArrayList<>(list.size());
+        for (PhotoRuntime photo : list) {
+            if (photo.isReady()) result.add(photo);
+        }
+        return result;
+    }
+
+    /**
+     * Apply a bulk owner transfer which is already stored in the
+     * database, without polling it again.
+     * @return the photos which changed owner
+     */
+    protected List<PhotoRuntime> transferAll(UUID from, UUID to, Date updated, int revision) {
+        List<PhotoRuntime> result = new ArrayList<>(ownerIndex.getOrDefault(from, List.of()));
+        for (PhotoRuntime photo : result) {
+            photo.getRow().setOwner(to);
+            photo.getRow().setUpdated(updated);
+            photo.getRow().setRevision(revision);
+            reindex(photo);
+            versions.put(photo.getPhotoId(), copyOf(photo.getRow()));
         }
         return result;
     }
+
+    /**
+     * Change the owner of a photo and keep the owner index up to
+     * date.  The caller is expected to store the row.
+     */
+    public void setOwner(PhotoRuntime photo, UUID owner) {
+        photo.getRow().setOwner(owner);
+        reindex(photo);
+    }
+
+    /**
+     * Move a photo to the owner index entry matching its row.  Call
+     * this whenever the row or its owner changes.
+     */
+    protected void reindex(PhotoRuntime photo) {
+        final UUID owner = photo.getRow() != null ? photo.getRow().getOwner() : null;
+        final boolean shouldIndex = photo.getRow() != null;
+        if (photo.isIndexed()) {
+            if (shouldIndex && Objects.equals(owner, photo.getIndexedOwner())) return;
+            List<PhotoRuntime> list = ownerIndex.get(photo.getIndexedOwner());
+            if (list != null) {
+                int index = indexOf(list, photo.getPhotoId());
+                if (index >= 0) list.remove(index);
+                if (list.isEmpty()) ownerIndex.remove(photo.getIndexedOwner());
+            }
+            photo.setIndexed(false);
+            photo.setIndexedOwner(null);
+        }
+        if (!shouldIndex) return;
+        List<PhotoRuntime> list = ownerIndex.computeIfAbsent(owner, u -> new ArrayList<>());
+        int index = indexOf(list, photo.getPhotoId());
+        if (index < 0) list.add(-index - 1, photo);
+        photo.setIndexed(true);
+        photo.setIndexedOwner(owner);
+    }
+
+    /**
+     * Binary search by photoId, see Collections#binarySearch.
+     */
+    private static int indexOf(List<PhotoRuntime> list, int photoId) {
+        int lo = 0;
+        int hi = list.size() - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int midId = list.get(mid).getPhotoId();
+            if (midId < photoId) {
+                lo = mid + 1;
+            } else if (midId > photoId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
 }
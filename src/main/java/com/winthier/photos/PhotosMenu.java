@@ -8,6 +8,7 @@ import com.cavetale.mytems.item.coin.Coin;
 import com.cavetale.mytems.item.photo.Photo;
 import com.winthier.photos.util.Gui;
 import java.util.List;
+import java.util.Objects;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
@@ -29,12 +30,17 @@ import static org.bukkit.SoundCategory.*;
  * PhotosMenu, which is a chest GUI.
  *
  * To open a PhotosMenu, call `new PhotosMenu(plugin, list).open(player)`.
+ * Flipping pages swaps the items of the open inventory, so the title
+ * stays the same and the page numbers are shown on the arrows.
  */
 @RequiredArgsConstructor
 public final class PhotosMenu {
+    private static final int SIZE = 6 * 9;
+    private static final int PAGE_SIZE = 5 * 9;
     private final PhotosPlugin plugin;
     private final List<PhotoRuntime> photos;
     int pageIndex = 0;
+    private Gui gui;
 
     /**
      * Open the menu for a player.  This will create an inventory
@@ -42,47 +48,10 @@ public final class PhotosMenu {
      * it with clickable items.
      */
     public void open(final Player player) {
-        final int size = 6 * 9;
-        final int pageSize = 5 * 9;
-        final int pageCount = (photos.size() - 1) / pageSize + 1;
-        Gui gui = new Gui(plugin).size(size);
-        GuiOverlay.Builder builder = GuiOverlay.BLANK.builder(size, color(SEPIA))
+        gui = new Gui(plugin).size(SIZE);
+        GuiOverlay.Builder builder = GuiOverlay.BLANK.builder(SIZE, color(SEPIA))
             .layer(GuiOverlay.TOP_BAR, WHITE)
-            .title(join(noSeparators(),
-                        (pageCount > 1
-                         ? text((pageIndex + 1) + "/" + pageCount + " ", BLACK)
-                         : empty()),
-                        text("Photos Menu", color(SEPIA))));
-        for (int i = 0; i < pageSize; i += 1) {
-            final int invIndex = 9 + i;
-            final int listIndex = pageIndex * pageSize + i;
-            if (listIndex >= photos.size()) break;
-            PhotoRuntime photo = photos.get(listIndex);
-            ItemStack icon = Photo.createItemStack(photo.getRow().getId());
-            icon.editMeta(meta -> {
-                    tooltip(meta, List.of(text(photo.getRow().getName(), color(photo.getRow().getColor())),
-                                          join(noSeparators(),
-                                               text(tiny("shift-click "), GREEN),
-                                               text("to buy", GRAY)),
-                                          text("an item copy", GRAY),
-                                          empty(),
-                                          join(noSeparators(),
-                                               text(tiny("price "), GRAY),
-                                               Coin.format(plugin.getCopyPrice()))));
-                });
-            gui.setItem(invIndex, icon, click -> {
-                    if (click.isShiftClick()) {
-                        if (buyCopy(player, photo)) {
-                            purchase(player);
-                        } else {
-                            fail(player);
-                        }
-                    } else if (click.isLeftClick()) {
-                        buyCopyInfo(player, photo);
-                        click(player);
-                    }
-                });
-        }
+            .title(text("Photos Menu", color(SEPIA)));
         // Buy new photo
         ItemStack blankIcon = Mytems.PLUS_BUTTON
             .createIcon(List.of(text("New Photo", color(SEPIA)),
@@ -104,25 +73,89 @@ public final class PhotosMenu {
                     }
                 }
             });
+        setPage(player);
+        gui.title(builder.build());
+        gui.open(player);
+    }
+
+    /**
+     * Fill the photo slots and page controls for the current page.
+     * Once the inventory is open, this updates it in place.
+     */
+    private void setPage(final Player player) {
+        final int pageCount = (photos.size() - 1) / PAGE_SIZE + 1;
+        for (int i = 0; i < PAGE_SIZE; i += 1) {
+            final int invIndex = 9 + i;
+            final int listIndex = pageIndex * PAGE_SIZE + i;
+            if (listIndex >= photos.size()) {
+                gui.setItem(invIndex, null);
+                continue;
+            }
+            PhotoRuntime photo = photos.get(listIndex);
+            gui.setItem(invIndex, iconOf(photo), click -> {
+                    if (click.isShiftClick()) {
+                        if (buyCopy(player, photo)) {
+                            purchase(player);
+                        } else {
+                            fail(player);
+                        }
+                    } else if (click.isLeftClick()) {
+                        buyCopyInfo(player, photo);
+                        click(player);
+                    }
+                });
+        }
         // Page controls
         if (pageIndex > 0) {
-            ItemStack prevIcon = Mytems.ARROW_LEFT.createIcon(List.of(text("Page " + pageIndex, GRAY)));
+            ItemStack prevIcon = Mytems.ARROW_LEFT.createIcon(List.of(text("Page " + pageIndex + "/" + pageCount, GRAY)));
             gui.setItem(0, prevIcon, click -> {
                     pageIndex -= 1;
-                    open(player);
+                    setPage(player);
                     pageFlip(player);
                 });
+        } else {
+            gui.setItem(0, null);
         }
         if (pageIndex < pageCount - 1) {
-            ItemStack nextIcon = Mytems.ARROW_RIGHT.createIcon(List.of(text("Page " + (pageIndex + 2), GRAY)));
+            ItemStack nextIcon = Mytems.ARROW_RIGHT.createIcon(List.of(text("Page " + (pageIndex + 2) + "/" + pageCount, GRAY)));
             gui.setItem(8, nextIcon, click -> {
                     pageIndex += 1;
-                    open(player);
+                    setPage(player);
                     pageFlip(player);
                 });
+        } else {
+            gui.setItem(8, null);
         }
-        gui.title(builder.build());
-        gui.open(player);
+    }
+
+    /**
+     * Get the menu icon of a photo.  Icons are kept with the photo
+     * and rebuilt once its name or color changes.
+     */
+    private ItemStack iconOf(PhotoRuntime photo) {
+        final String name = photo.getRow().getName();
+        final int color = photo.getRow().getColor();
+        if (photo.getMenuIcon() != null
+            && color == photo.getMenuIconColor()
+            && Objects.equals(name, photo.getMenuIconName())) {
+            return photo.getMenuIcon();
+        }
+        ItemStack icon = Photo.createItemStack(photo.getRow().getId());
+        icon.editMeta(meta -> {
+                tooltip(meta, List.of(text(name, color(color)),
+                                      join(noSeparators(),
+                                           text(tiny("shift-click "), GREEN),
+                                           text("to buy", GRAY)),
+                                      text("an item copy", GRAY),
+                                      empty(),
+                                      join(noSeparators(),
+                                           text(tiny("price "), GRAY),
+                                           Coin.format(plugin.getCopyPrice()))));
+            });
+        photo.setMenuIcon(icon);
+        photo.setMenuIconName(name);
+        photo.setMenuIconColor(color);
+        return icon;
     }
 
     /**
@@ -1,26 +1,27 @@
 package com.winthier.photos;
 
 import com.cavetale.core.connect.ServerGroup;
+import com.cavetale.mytems.Mytems;
 import com.cavetale.mytems.item.photo.Photo;
 import com.cavetale.mytems.item.photo.PhotoData;
 import com.winthier.photos.sql.SQLConsent;
 import com.winthier.photos.sql.SQLPhoto;
+import com.winthier.photos.sql.SQLPhotoChange;
 import com.winthier.photos.util.Gui;
 import com.winthier.sql.SQLDatabase;
-import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
 import javax.imageio.ImageIO;
 import lombok.Getter;
 import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.java.JavaPlugin;
 import static java.awt.Color.HSBtoRGB;
 import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
@@ -37,32 +38,60 @@ public final class PhotosPlugin extends JavaPlugin {
     private final double copyPrice = 100.0;
     private final long loadCooldown = 10L;
     private final int maxFileSize = 65536;
+    private final int maxAdminFileSize = 16 * 1024 * 1024;
+    private final int maxImageDimension = 4096;
     private final BufferedImage defaultImage = new BufferedImage(128, 128, TYPE_INT_ARGB);
+    private byte[] defaultPixels;
     private final String defaultDownloadURL = "https://i.imgur.com/NNvWR6B.png";
     private PhotoCommand photoCommand = new PhotoCommand(this);
     private AdminCommand adminCommand = new AdminCommand(this);
     private final SQLDatabase database = new SQLDatabase(this);
     private Photos photos = new Photos(this);
+    private RenderScheduler renderScheduler = new RenderScheduler(this);
+    private ImageCache imageCache;
+    private PhotoAtlas atlas;
+    private PhotoExecutor executor = new PhotoExecutor(this);
+    private PhotoBus bus = new PhotoBus(this);
+    private ConsentCache consentCache = new ConsentCache(this);
+    private MapSendQueue mapSendQueue = new MapSendQueue(this);
+    private PhotoViews views = new PhotoViews(this);
+    private PhotoPrefetcher prefetcher = new PhotoPrefetcher(this);
+    private final ImageDownloader downloader = new ImageDownloader(maxFileSize, maxAdminFileSize, maxImageDimension);
     private File imageFolder;
 
     @Override
     public void onEnable() {
+        saveDefaultConfig();
+        reloadConfig();
+        imageCache = new ImageCache(getConfig().getLong("cache.max-megabytes", 64L) * 1024L * 1024L);
         imageFolder = new File("/home/cavetale/share/photos");
         if (ServerGroup.current() == ServerGroup.TESTING || !imageFolder.isDirectory()) {
             imageFolder = new File(getDataFolder(), "images");
         }
         imageFolder.mkdirs();
-        database.registerTables(List.of(SQLPhoto.class, SQLConsent.class));
+        atlas = new PhotoAtlas(new File(getDataFolder(), "atlas.bin"));
+        try {
+            atlas.open();
+        } catch (IOException ioe) {
+            getLogger().warning("Cannot open atlas: " + ioe);
+        }
+        database.registerTables(List.of(SQLPhoto.class, SQLConsent.class, SQLPhotoChange.class));
         if (!database.createAllTables()) {
             throw new IllegalStateException("Database setup failed");
         }
+        bus.enable();
+        views.enable();
+        consentCache.enable();
         photos.enable();
         photoCommand = new PhotoCommand(this);
         adminCommand = new AdminCommand(this);
         Gui.enable(this);
         photoCommand.enable();
         adminCommand.enable();
-        getServer().getScheduler().runTaskTimer(this, PhotoRenderer::onTick, 1L, 1L);
+        executor.enable();
+        renderScheduler.enable();
+        mapSendQueue.enable();
+        prefetcher.enable();
         Photo.setPhotoDataGetter(this::getMytemsPhotoData);
         Photo.setPhotoIdGetter(this::mapIdToPhotoId);
         for (int y = 0; y < 128; y += 1) {
@@ -86,13 +115,17 @@ public final class PhotosPlugin extends JavaPlugin {
                 defaultImage.setRGB(x, y, hex);
             }
         }
+        defaultPixels = MapPixels.fromImage(defaultImage);
     }
 
     @Override
     public void onDisable() {
+        executor.disable();
+        photos.disable();
         Gui.disable();
         Photo.setPhotoDataGetter(null);
         Photo.setPhotoIdGetter(null);
+        if (atlas != null) atlas.close();
     }
 
     /**
@@ -101,55 +134,7 @@ public final class PhotosPlugin extends JavaPlugin {
      * The image will be scaled to 128x128 pixels if necessary.
      */
     protected DownloadResult downloadImage(URL url, boolean adminOverride) {
-        try {
-            URLConnection urlConnection = url.openConnection();
-            int contentLength = urlConnection.getContentLength();
-            if (contentLength < 0) contentLength = maxFileSize;
-            if (!adminOverride && contentLength > maxFileSize) {
-                return DownloadStatus.TOO_LARGE.make();
-            }
-            InputStream in = urlConnection.getInputStream();
-            byte[] buf = new byte[contentLength];
-            int r = -1;
-            for (int total = 0; total < contentLength;) {
-                r = in.read(buf, total, contentLength - total);
-                if (r == 0) return DownloadStatus.NOT_FOUND.make();
-                if (r == -1) break;
-                total += r;
-            }
-            in.close();
-            BufferedImage image = ImageIO.read(new ByteArrayInputStream(buf));
-            if (image == null) return DownloadStatus.NOT_IMAGE.make();
-            // Crop
-            if (image.getWidth() > image.getHeight()) {
-                BufferedImage cropped = new BufferedImage(image.getHeight(), image.getHeight(), TYPE_INT_ARGB);
-                Graphics2D gfx = cropped.createGraphics();
-                gfx.drawImage(image, (image.getWidth() - image.getHeight()) / -2, 0, null);
-                gfx.dispose();
-                image = cropped;
-            } else if (image.getHeight() > image.getWidth()) {
-                BufferedImage cropped = new BufferedImage(image.getWidth(), image.getWidth(), TYPE_INT_ARGB);
-                Graphics2D gfx = cropped.createGraphics();
-                gfx.drawImage(image, 0, (image.getHeight() - image.getWidth()) / -2, null);
-                gfx.dispose();
-                image = cropped;
-            }
-            if (image.getWidth() != 128 || image.getHeight() != 128) {
-                image = toBufferedImage(image.getScaledInstance(128, 128, Image.SCALE_SMOOTH));
-            }
-            return DownloadStatus.SUCCESS.make(image);
-        } catch (IOException ioe) {
-            return DownloadStatus.NOT_IMAGE.make(ioe);
-        }
-    }
-
-    private static BufferedImage toBufferedImage(Image image) {
-        if (image instanceof BufferedImage) return (BufferedImage) image;
-        BufferedImage result = new BufferedImage(128, 128, TYPE_INT_ARGB);
-        Graphics2D gfx = result.createGraphics();
-        gfx.drawImage(image, 0, 0, null);
-        gfx.dispose();
-        return result;
+        return downloader.download(url, adminOverride);
     }
 
     /**
@@ -158,8 +143,11 @@ public final class PhotosPlugin extends JavaPlugin {
      * from Photo#filename.
      */
     protected BufferedImage loadImage(PhotoRuntime photo) {
+        return loadImage(new File(imageFolder, photo.getRow().filename()));
+    }
+
+    private static BufferedImage loadImage(File file) {
         try {
-            File file = new File(imageFolder, photo.getRow().filename());
             if (!file.isFile() && !file.canRead()) return null;
             return ImageIO.read(file);
         } catch (IOException ioe) {
@@ -168,11 +156,43 @@ public final class PhotosPlugin extends JavaPlugin {
         }
     }
 
-    protected void loadImageAsync(PhotoRuntime photo, Consumer<BufferedImage> callback) {
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-                BufferedImage image = loadImage(photo);
-                Bukkit.getScheduler().runTask(this, () -> callback.accept(image));
-            });
+    /**
+     * Load an image and convert it to map palette colors.  Both
+     * happen off the main thread so the renderer can write the
+     * result straight to its canvas.  Reads through the ImageCache,
+     * then the PhotoAtlas, and only decodes the PNG if both miss or
+     * the atlas record is older than the file.
+     * @return the palette colors, or null if the image could not be
+     * loaded
+     */
+    protected byte[] loadPixels(PhotoRuntime photo) {
+        final int photoId = photo.getPhotoId();
+        byte[] cached = imageCache.peek(photoId);
+        if (cached != null) return cached;
+        File file = new File(imageFolder, photo.getRow().filename());
+        final long modified = file.lastModified();
+        if (modified == 0L) return null;
+        byte[] pixels = atlas.read(photoId, modified);
+        if (pixels == null) {
+            BufferedImage image = loadImage(file);
+            if (image == null) return null;
+            if (image.getWidth() != 128 || image.getHeight() != 128) {
+                image = PhotoScaler.squareAndScale(image);
+            }
+            pixels = MapPixels.fromImage(image);
+            atlas.write(photoId, modified, pixels);
+        }
+        imageCache.put(photoId, pixels);
+        return pixels;
+    }
+
+    /**
+     * Load pixels on the PhotoExecutor and hand them to the callback
+     * on the main thread.
+     * @return false if the load queue is full, true otherwise
+     */
+    protected boolean loadPixelsAsync(PhotoRuntime photo, Consumer<byte[]> callback) {
+        return executor.load(photo, callback);
     }
 
     protected void downloadPhotoAsync(final PhotoRuntime photo,
@@ -180,28 +200,60 @@ public final class PhotosPlugin extends JavaPlugin {
                                       final boolean adminOverride,
                                       final Consumer<DownloadResult> callback) {
         final File file = new File(imageFolder, photo.getRow().filename());
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+        boolean queued = executor.download(photo.getPhotoId(), () -> {
                 DownloadResult result = downloadImage(url, adminOverride);
                 if (result.status() == DownloadStatus.SUCCESS) {
                     try {
                         ImageIO.write(result.image(), "png", file);
+                        imageCache.invalidate(photo.getPhotoId());
+                        atlas.invalidate(photo.getPhotoId());
                     } catch (IOException ioe) {
                         ioe.printStackTrace();
                         result = DownloadStatus.NOSAVE.make(ioe);
                     }
                 }
+                if (!isEnabled()) return;
                 final DownloadResult finalResult = result;
                 Bukkit.getScheduler().runTask(this, () -> {
+                        if (finalResult.status().isSuccessful() && photo.getRenderer() != null) {
+                            photo.getRenderer().refresh();
+                        }
                         callback.accept(finalResult);
                     });
             });
+        if (!queued) {
+            callback.accept(DownloadStatus.BUSY.make());
+        }
+    }
+
+    /**
+     * Rebuild the photo items of the given photos in the inventories
+     * of all online players, so their tooltips show the current row.
+     * @return the number of updated items
+     */
+    protected int refreshPhotoItems(Set<Integer> photoIds) {
+        if (photoIds.isEmpty()) return 0;
+        int count = 0;
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            Inventory inventory = player.getInventory();
+            for (int i = 0; i < inventory.getSize(); i += 1) {
+                ItemStack item = inventory.getItem(i);
+                if (item == null || !Mytems.PHOTO.isItem(item)) continue;
+                final int photoId = Photo.getPhotoId(item);
+                if (!photoIds.contains(photoId)) continue;
+                item.setItemMeta(Photo.createItemStack(photoId).getItemMeta());
+                inventory.setItem(i, item);
+                count += 1;
+            }
+        }
+        return count;
     }
 
     private PhotoData getMytemsPhotoData(int photoId) {
         PhotoRuntime photo = photos.ofPhotoId(photoId);
         if (photo == null || !photo.isReady()) return null;
         return new PhotoData(photo.getRow().getOwner(),
-                             photo.getMapView().getId(),
+                             photos.materialize(photo).getId(),
                              photo.getRow().getColor(),
                              photo.getRow().getName());
     }
@@ -0,0 +1,141 @@
+package com.winthier.photos;
+
+import com.winthier.photos.sql.SQLPhoto;
+import com.winthier.playercache.PlayerCache;
+import java.io.File;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import static net.kyori.adventure.text.Component.text;
+import static net.kyori.adventure.text.format.NamedTextColor.*;
+
+/**
+ * Background job behind `/photoadmin prune`.  Photo rows are streamed
+ * in pages ordered by id, the image files of each page are checked
+ * in parallel, and blank rows are deleted one page at a time.  The
+ * sender is kept informed of the progress.  The job may be
+ * cancelled between pages.
+ */
+@RequiredArgsConstructor
+final class PruneJob {
+    private static final int PAGE_SIZE = 500;
+    private static final int PARALLELISM = 8;
+    private static final long PROGRESS_INTERVAL = 5_000L;
+    private final PhotosPlugin plugin;
+    private final CommandSender sender;
+    private final boolean forReal;
+    @Getter private volatile boolean cancelled = false;
+    @Getter private volatile boolean done = false;
+    private int total = 0;
+    private int blank = 0;
+    private final Map<UUID, Integer> ownerMap = new HashMap<>();
+    /** The ids of all rows which remain in the database. */
+    private final BitSet remoteIds = new BitSet();
+    /** The highest id scanned.  Rows above it were created since. */
+    private int lastId = 0;
+
+    public void start() {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, this::run);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void run() {
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        long lastProgress = System.currentTimeMillis();
+        try {
+            while (!cancelled && plugin.isEnabled()) {
+                List<SQLPhoto> page = plugin.getDatabase().find(SQLPhoto.class)
+                    .gt("id", lastId)
+                    .orderByAscending("id")
+                    .limit(PAGE_SIZE)
+                    .findList();
+                if (page.isEmpty()) break;
+                lastId = page.get(page.size() - 1).getId();
+                List<SQLPhoto> blankRows = pool.submit(() -> page.parallelStream()
+                                                        .filter(row -> !new File(plugin.getImageFolder(), row.filename()).exists())
+                                                        .collect(Collectors.toList()))
+                    .get();
+                total += page.size();
+                blank += blankRows.size();
+                for (SQLPhoto row : page) {
+                    remoteIds.set(row.getId());
+                }
+                for (SQLPhoto row : blankRows) {
+                    if (row.getOwner() != null) {
+                        ownerMap.compute(row.getOwner(), (u, i) -> i != null ? i + 1 : 1);
+                    }
+                }
+                if (forReal && !blankRows.isEmpty()) {
+                    plugin.getDatabase().delete(blankRows);
+                    for (SQLPhoto row : blankRows) {
+                        remoteIds.clear(row.getId());
+                    }
+                }
+                final long now = System.currentTimeMillis();
+                if (now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    message(text("Prune: scanned " + total + ", found " + blank + " blank...", GRAY));
+                }
+            }
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Prune failed", e);
+            message(text("Prune failed after " + total + " photos: " + e, RED));
+            done = true;
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        if (!plugin.isEnabled()) return;
+        Bukkit.getScheduler().runTask(plugin, this::finish);
+    }
+
+    /**
+     * Report the result on the main thread, and prune the local
+     * mappings if this is for real.
+     */
+    private void finish() {
+        done = true;
+        if (cancelled) {
+            sender.sendMessage(text("Prune cancelled after " + total + " photos"
+                                    + (forReal ? ", deleted " : ", found ") + blank + " blank", YELLOW));
+            return;
+        }
+        Photos.PruneResult local = forReal
+            ? plugin.getPhotos().pruneLocal(remoteIds, lastId)
+            : new Photos.PruneResult(0, 0, 0);
+        if (blank == 0 && local.isEmpty()) {
+            sender.sendMessage(text("No blank photos were found", RED));
+            return;
+        }
+        for (Map.Entry<UUID, Integer> entry : ownerMap.entrySet()) {
+            sender.sendMessage(text("" + entry.getValue() + " " + PlayerCache.nameForUuid(entry.getKey()), GREEN));
+        }
+        if (forReal) {
+            sender.sendMessage(text("Deleted " + blank + "/" + total + " blank photos"
+                                    + ", pruned " + local.mappings() + " mappings"
+                                    + ", " + local.photos() + " photos"
+                                    + ", " + local.images() + " cached images", YELLOW));
+        } else {
+            sender.sendMessage(text("Found " + blank + "/" + total + " blank photos", AQUA));
+        }
+    }
+
+    private void message(Component message) {
+        if (!plugin.isEnabled()) return;
+        Bukkit.getScheduler().runTask(plugin, () -> sender.sendMessage(message));
+    }
+}
@@ -0,0 +1,116 @@
+package com.winthier.photos;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Rations the work PhotoRenderers may do on the main thread.
+ *
+ * Renderers waiting for their pixels are queued here, each at most
+ * once, and only a limited number of async loads run at the same
+ * time.  Drawing is measured in nanoseconds and stops for the
+ * current tick once the configured budget is spent.  At least one
+ * draw happens every tick so progress is guaranteed.
+ */
+@RequiredArgsConstructor
+final class RenderScheduler {
+    private final PhotosPlugin plugin;
+    private final Set<PhotoRenderer> loadQueue = new LinkedHashSet<>();
+    @Getter private int maxConcurrentLoads = 4;
+    @Getter private long tickBudgetNanos = 2_000_000L;
+    @Getter private int loading = 0;
+    private long spentNanos = 0L;
+    private int drawsThisTick = 0;
+    private boolean draining = false;
+    // Stats
+    @Getter private long drawCount = 0L;
+    @Getter private long drawNanos = 0L;
+    @Getter private long deferredCount = 0L;
+    @Getter private long deltaCount = 0L;
+    @Getter private long deltaBytes = 0L;
+
+    protected void enable() {
+        ConfigurationSection config = plugin.getConfig().getConfigurationSection("render");
+        if (config != null) {
+            maxConcurrentLoads = Math.max(1, config.getInt("max-concurrent-loads", maxConcurrentLoads));
+            tickBudgetNanos = Math.max(0L, config.getLong("tick-budget-micros", tickBudgetNanos / 1000L)) * 1000L;
+        }
+        Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+    }
+
+    private void tick() {
+        spentNanos = 0L;
+        drawsThisTick = 0;
+        drainLoads();
+    }
+
+    public int getQueueSize() {
+        return loadQueue.size();
+    }
+
+    /**
+     * Queue a renderer for loading.  Duplicates are ignored.
+     */
+    protected void requestLoad(PhotoRenderer renderer) {
+        loadQueue.add(renderer);
+        drainLoads();
+    }
+
+    protected void cancelLoad(PhotoRenderer renderer) {
+        loadQueue.remove(renderer);
+    }
+
+    /**
+     * Called by a renderer once its async load has returned.
+     */
+    protected void loadFinished() {
+        loading = Math.max(0, loading - 1);
+        drainLoads();
+    }
+
+    private void drainLoads() {
+        if (draining) return;
+        draining = true;
+        try {
+            while (loading < maxConcurrentLoads && !loadQueue.isEmpty()) {
+                Iterator<PhotoRenderer> iter = loadQueue.iterator();
+                PhotoRenderer renderer = iter.next();
+                iter.remove();
+                loading += 1;
+                renderer.load();
+            }
+        } finally {
+            draining = false;
+        }
+    }
+
+    /**
+     * Check if there is time left to draw in this tick.
+     */
+    protected boolean canDraw() {
+        if (spentNanos < tickBudgetNanos || drawsThisTick == 0) return true;
+        deferredCount += 1;
+        return false;
+    }
+
+    protected void recordDraw(long nanos) {
+        spentNanos += Math.max(1L, nanos);
+        drawsThisTick += 1;
+        drawCount += 1;
+        drawNanos += nanos;
+    }
+
+    /**
+     * Record a redraw which only changed a rectangle of the given
+     * area, in pixels, which is also its size on the wire.
+     */
+    protected void recordDelta(int area) {
+        deltaCount += 1;
+        deltaBytes += area;
+    }
+}
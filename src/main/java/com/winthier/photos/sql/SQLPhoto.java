@@ -13,7 +13,8 @@ import lombok.Data;
 @Data @Table(name = "photos",
              indexes = {
                  @Index(name = "owner", columnList = "owner"),
-                 @Index(name = "updated", columnList = "updated")
+                 @Index(name = "updated", columnList = "updated"),
+                 @Index(name = "revision", columnList = "revision")
              })
 public final class SQLPhoto implements SQLRow {
     @Id
@@ -34,6 +35,12 @@ public final class SQLPhoto implements SQLRow {
     @Column(nullable = false)
     private Date updated;
 
+    @Column(nullable = false)
+    private int revision;
+
+    @Column(nullable = false)
+    private int imageRevision; // revision of the last image change
+
     public SQLPhoto() { }
 
     public SQLPhoto(final UUID owner, final String name, final int color) {
@@ -44,6 +51,24 @@ public final class SQLPhoto implements SQLRow {
         this.updated = created;
     }
 
+    /**
+     * Mark this row as changed.  The revision is drawn from the
+     * database sequence, see Photos#nextRevision, so it is higher
+     * than any revision stored before, on any server.
+     */
+    public void touch(int newRevision) {
+        updated = new Date();
+        revision = newRevision;
+    }
+
+    /**
+     * Check if another copy of this row has the same version.
+     * Revisions come from a global sequence, so they alone tell.
+     */
+    public boolean isSameVersion(SQLPhoto other) {
+        return revision == other.revision;
+    }
+
     public String filename() {
         return String.format("%05d.png", id);
     }
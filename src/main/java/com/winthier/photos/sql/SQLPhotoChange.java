@@ -0,0 +1,27 @@
+package com.winthier.photos.sql;
+
+import com.winthier.sql.SQLRow;
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import lombok.Data;
+
+/**
+ * The revision sequence.  Every change to the photos table inserts
+ * one row here, and the generated id becomes the revision of the
+ * changed rows, so revisions grow across all servers.  Older rows
+ * are deleted as new ones are drawn.
+ */
+@Data @Table(name = "photo_changes")
+public final class SQLPhotoChange implements SQLRow {
+    @Id
+    private Integer id;
+
+    @Column(nullable = false)
+    private Date created;
+
+    public SQLPhotoChange() {
+        this.created = new Date();
+    }
+}
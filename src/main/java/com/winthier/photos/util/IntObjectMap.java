@@ -0,0 +1,137 @@
+package com.winthier.photos.util;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Open addressing hash map from primitive int keys to non-null
+ * values.  Lookups neither box the key nor chase tree nodes, which
+ * matters for maps that are queried on every item render.
+ *
+ * Collisions are resolved with linear probing, and removal shifts
+ * the following entries back, so there are no tombstones.  This class
+ * is not thread safe.
+ */
+public final class IntObjectMap<V> {
+    private static final float LOAD_FACTOR = 0.5f;
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public IntObjectMap() {
+        this(16);
+    }
+
+    public IntObjectMap(final int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int mix(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+            final Object value = values[i];
+            if (value == null) return null;
+            if (keys[i] == key) return (V) value;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Store a value.
+     * @return the previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) throw new NullPointerException("value=null");
+        for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+            final Object old = values[i];
+            if (old == null) {
+                keys[i] = key;
+                values[i] = value;
+                size += 1;
+                if (size > (int) (keys.length * LOAD_FACTOR)) rehash(keys.length << 1);
+                return null;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return (V) old;
+            }
+        }
+    }
+
+    /**
+     * Remove a value.
+     * @return the removed value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+            final Object value = values[i];
+            if (value == null) return null;
+            if (keys[i] != key) continue;
+            size -= 1;
+            // Shift back any entries which probed past this slot
+            int gap = i;
+            for (int j = (gap + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                final int home = mix(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            values[gap] = null;
+            return (V) value;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i += 1) {
+            if (oldValues[i] == null) continue;
+            int j = mix(oldKeys[i]) & mask;
+            while (values[j] != null) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<V> consumer) {
+        for (Object value : values) {
+            if (value != null) consumer.accept((V) value);
+        }
+    }
+}
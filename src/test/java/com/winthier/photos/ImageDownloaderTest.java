@@ -0,0 +1,133 @@
+package com.winthier.photos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Run ImageDownloader against a local HTTP server.  Each test serves
+ * one response under /image.
+ */
+final class ImageDownloaderTest {
+    private static final int MAX_FILE_SIZE = 4096;
+    private static final int MAX_DIMENSION = 1024;
+    private final ImageDownloader downloader = new ImageDownloader(MAX_FILE_SIZE, 4 * MAX_FILE_SIZE, MAX_DIMENSION);
+    private HttpServer server;
+
+    @FunctionalInterface
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * Serve the handler and download from it.  The downloader may
+     * hang up early, so write errors on the server side are
+     * expected.
+     */
+    private DownloadResult download(Handler handler) throws IOException {
+        server.createContext("/image", exchange -> {
+                try (exchange) {
+                    handler.handle(exchange);
+                } catch (IOException ioe) {
+                    // The client hung up
+                }
+            });
+        URL url = new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), "/image");
+        return downloader.download(url, false);
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, long contentLength, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, contentLength);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void success() throws IOException {
+        byte[] body = png(64, 32);
+        DownloadResult result = download(exchange -> respond(exchange, "image/png", body.length, body));
+        assertEquals(DownloadStatus.SUCCESS, result.status());
+        assertEquals(MapPixels.SIZE, result.image().getWidth());
+        assertEquals(MapPixels.SIZE, result.image().getHeight());
+    }
+
+    @Test
+    void oversizedContentLength() throws IOException {
+        byte[] body = new byte[MAX_FILE_SIZE + 1];
+        DownloadResult result = download(exchange -> respond(exchange, "image/png", body.length, body));
+        assertEquals(DownloadStatus.TOO_LARGE, result.status());
+    }
+
+    @Test
+    void oversizedStream() throws IOException {
+        // A valid signature, then more bytes than the cap, chunked
+        byte[] body = new byte[2 * MAX_FILE_SIZE];
+        body[0] = (byte) 0xFF;
+        body[1] = (byte) 0xD8;
+        body[2] = (byte) 0xFF;
+        DownloadResult result = download(exchange -> respond(exchange, "image/jpeg", 0, body));
+        assertEquals(DownloadStatus.TOO_LARGE, result.status());
+    }
+
+    @Test
+    void textContentType() throws IOException {
+        byte[] body = png(16, 16);
+        DownloadResult result = download(exchange -> respond(exchange, "text/html", body.length, body));
+        assertEquals(DownloadStatus.NOT_IMAGE, result.status());
+    }
+
+    @Test
+    void nonImageContent() throws IOException {
+        byte[] body = "<html><body>Not an image at all</body></html>".getBytes();
+        DownloadResult result = download(exchange -> respond(exchange, "application/octet-stream", body.length, body));
+        assertEquals(DownloadStatus.NOT_IMAGE, result.status());
+    }
+
+    @Test
+    void oversizedDimensions() throws IOException {
+        // Only the header, which claims a huge image
+        byte[] body = new byte[ImageDownloader.HEADER_LENGTH];
+        System.arraycopy(png(1, 1), 0, body, 0, 16);
+        writeIntBigEndian(body, 16, MAX_DIMENSION + 1);
+        writeIntBigEndian(body, 20, 1);
+        DownloadResult result = download(exchange -> respond(exchange, "image/png", body.length, body));
+        assertEquals(DownloadStatus.TOO_LARGE, result.status());
+    }
+
+    private static void writeIntBigEndian(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,80 @@
+package com.winthier.photos;
+
+import com.winthier.photos.sql.SQLPhoto;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Time Photos#find at growing photo counts.  Every owner has the
+ * same number of photos, so with the owner index the cost should
+ * stay flat while the total grows.
+ *
+ * This is not run by the tests.  Run it with `mvn test-compile` and
+ * the main method on the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhotosFindBenchmark {
+    private static final int PHOTOS_PER_OWNER = 20;
+    private static final int LOOKUPS = 1 << 12;
+    @Param({"1000", "10000", "100000"})
+    public int photoCount;
+    private Photos photos;
+    private UUID[] lookups;
+    private int index;
+
+    @Setup
+    public void setup() {
+        // Indexing needs no plugin
+        photos = new Photos(null);
+        Random random = new Random(1L);
+        UUID[] owners = new UUID[photoCount / PHOTOS_PER_OWNER];
+        for (int i = 0; i < owners.length; i += 1) {
+            owners[i] = new UUID(random.nextLong(), random.nextLong());
+        }
+        for (int photoId = 1; photoId <= photoCount; photoId += 1) {
+            SQLPhoto row = new SQLPhoto(owners[photoId % owners.length], "Photo " + photoId, 0);
+            row.setId(photoId);
+            PhotoRuntime photo = new PhotoRuntime(photoId);
+            photo.setRow(row);
+            photos.reindex(photo);
+        }
+        lookups = new UUID[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i += 1) {
+            lookups[i] = owners[random.nextInt(owners.length)];
+        }
+    }
+
+    @Benchmark
+    public List<PhotoRuntime> find() {
+        index = (index + 1) & (LOOKUPS - 1);
+        return photos.find(lookups[index]);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                   .include(PhotosFindBenchmark.class.getSimpleName())
+                   .build())
+            .run();
+    }
+}
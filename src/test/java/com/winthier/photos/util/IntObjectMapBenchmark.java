@@ -0,0 +1,82 @@
+package com.winthier.photos.util;
+
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compare lookups in IntObjectMap to the TreeMap which Photos used
+ * for ofPhotoId and ofMapId before.  Keys are compact, like the ids
+ * handed out by the database and the server, and looked up in
+ * random order.
+ *
+ * This is not run by the tests.  Run it with `mvn test-compile` and
+ * the main method on the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntObjectMapBenchmark {
+    private static final int LOOKUPS = 1 << 16;
+    @Param({"1000", "10000", "100000"})
+    public int size;
+    private IntObjectMap<Object> intObjectMap;
+    private TreeMap<Integer, Object> treeMap;
+    private int[] keys;
+    private int index;
+
+    @Setup
+    public void setup() {
+        intObjectMap = new IntObjectMap<>();
+        treeMap = new TreeMap<>();
+        for (int i = 0; i < size; i += 1) {
+            Object value = new Object();
+            intObjectMap.put(i, value);
+            treeMap.put(i, value);
+        }
+        Random random = new Random(1L);
+        keys = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i += 1) {
+            keys[i] = random.nextInt(size);
+        }
+    }
+
+    private int nextKey() {
+        index = (index + 1) & (LOOKUPS - 1);
+        return keys[index];
+    }
+
+    @Benchmark
+    public Object intObjectMap() {
+        return intObjectMap.get(nextKey());
+    }
+
+    @Benchmark
+    public Object treeMap() {
+        return treeMap.get(nextKey());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                   .include(IntObjectMapBenchmark.class.getSimpleName())
+                   .build())
+            .run();
+    }
+}
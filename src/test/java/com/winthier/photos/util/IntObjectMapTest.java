@@ -0,0 +1,58 @@
+package com.winthier.photos.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compare IntObjectMap to a HashMap under random puts, removes and
+ * gets.  Keys come from a small range, so removals shift back long
+ * probe chains, and some keys are negative.
+ */
+final class IntObjectMapTest {
+    private static final int OPERATIONS = 200_000;
+    private static final int KEY_RANGE = 2_000;
+
+    @Test
+    void randomOperations() {
+        for (long seed = 0L; seed < 8L; seed += 1L) {
+            randomOperations(new Random(seed), seed);
+        }
+    }
+
+    private static void randomOperations(Random random, long seed) {
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < OPERATIONS; i += 1) {
+            final int key = random.nextInt(KEY_RANGE) - KEY_RANGE / 4;
+            final String where = "seed=" + seed + " op=" + i + " key=" + key;
+            switch (random.nextInt(3)) {
+            case 0:
+                assertEquals(expected.put(key, i), map.put(key, i), where);
+                break;
+            case 1:
+                assertEquals(expected.remove(key), map.remove(key), where);
+                break;
+            default:
+                assertEquals(expected.get(key), map.get(key), where);
+                assertEquals(expected.containsKey(key), map.containsKey(key), where);
+                break;
+            }
+            assertEquals(expected.size(), map.size(), where);
+        }
+        for (int key = -KEY_RANGE; key < KEY_RANGE; key += 1) {
+            assertEquals(expected.get(key), map.get(key), "seed=" + seed + " key=" + key);
+        }
+        Map<Integer, Integer> values = new HashMap<>();
+        map.forEachValue(value -> values.merge(value, 1, Integer::sum));
+        for (Integer value : expected.values()) {
+            assertEquals(1, values.remove(value), "seed=" + seed + " value=" + value);
+        }
+        assertTrue(values.isEmpty(), "seed=" + seed);
+        map.clear();
+        assertTrue(map.isEmpty(), "seed=" + seed);
+        assertNull(map.get(0), "seed=" + seed);
+    }
+}